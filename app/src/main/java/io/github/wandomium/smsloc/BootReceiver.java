@@ -0,0 +1,63 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+
+import io.github.wandomium.smsloc.data.file.LogFile;
+import io.github.wandomium.smsloc.defs.SmsLoc_Intents;
+import io.github.wandomium.smsloc.toolbox.ABaseFgService;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
+
+/**
+ * Starts the services that have unfinished work in the outbox, for example responses
+ * that were waiting for network when the phone was turned off. See ABaseFgService.replayOutbox
+ */
+public class BootReceiver extends BroadcastReceiver
+{
+    @Override
+    public void onReceive(Context context, Intent intent)
+    {
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            return;
+        }
+        final Context appCtx = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        AppExecutor.getInstance().execute(() -> {
+            try {
+                for (String service : ABaseFgService.getOutboxServices(appCtx)) {
+                    try {
+                        appCtx.startForegroundService(new Intent()
+                                .setComponent(new ComponentName(appCtx, service))
+                                .putExtra(SmsLoc_Intents.EXTRA_REPLAY, true));
+                    }
+                    catch (Exception e) {
+                        // background restrictions, the next start of the service picks it up
+                        LogFile.getInstance(appCtx).addLogEntry("Could not resend after boot: " + e.getMessage());
+                    }
+                }
+            }
+            finally {
+                LogFile.getInstance(appCtx).flush();
+                result.finish();
+            }
+        });
+    }
+}
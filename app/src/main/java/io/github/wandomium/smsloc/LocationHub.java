@@ -0,0 +1,232 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.core.location.LocationListenerCompat;
+
+import io.github.wandomium.smsloc.data.file.LastFixFile;
+import io.github.wandomium.smsloc.data.unit.GpsData;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
+import io.github.wandomium.smsloc.toolbox.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * All location requests of the app go trough here, so there is never more than one
+ * LocationManager request per provider.
+ * <p>
+ * Subscribers (tracking sessions, the map, one shot GPS requests) share the registration of
+ * their provider, made at the shortest interval any of them asked for. Each one only gets
+ * fixes at its own interval. Concurrent one shot requests of the same kind are joined and
+ * get the same result. Every fix is also offered to LastFixFile.
+ */
+public class LocationHub
+{
+    private static final String CLASS_TAG = LocationHub.class.getSimpleName();
+
+    private static LocationHub mInstance = null;
+    private static final Object GET_INSTANCE_LOCK = new Object();
+
+    /* Interval one shot requests listen at */
+    public static final long ONE_SHOT_INTERVAL_MS = 1000;
+
+    private final Context mAppCtx;
+    private final LocationManager mLocMngr;
+    private final HashMap<String, ProviderSession> mProviders = new HashMap<>();
+    private final HashMap<String, ArrayList<LocationRetriever.LocCb>> mInFlight = new HashMap<>();
+
+    private static final class Subscription
+    {
+        private final long intervalMs;
+        private long lastDeliveredMs = Long.MIN_VALUE / 2;
+
+        private Subscription(long intervalMs) {
+            this.intervalMs = intervalMs;
+        }
+    }
+
+    /** The one LocationManager registration of a provider */
+    private final class ProviderSession implements LocationListenerCompat
+    {
+        private final String provider;
+        private final HashMap<LocationListenerCompat, Subscription> subs = new HashMap<>();
+        private long registeredMs = 0; // 0 = not registered
+
+        private ProviderSession(String provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        public void onLocationChanged(@NonNull Location location) {
+            _dispatch(this, location);
+        }
+    }
+
+    private LocationHub(Context context)
+    {
+        mAppCtx = context.getApplicationContext();
+        mLocMngr = (LocationManager) mAppCtx.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+    public static LocationHub getInstance(Context context)
+    {
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            if (mInstance == null) {
+                mInstance = new LocationHub(context);
+            }
+            return mInstance;
+        }
+    }
+
+    /**
+     * Fixes of the provider are delivered to listener on the main thread, not more often than intervalMs.
+     * Subscribing again with the same listener changes its interval.
+     * @throws SecurityException missing location permissions
+     * @throws IllegalArgumentException provider does not exist
+     */
+    public synchronized void subscribe(String provider, LocationListenerCompat listener, long intervalMs)
+    {
+        final ProviderSession session = mProviders.computeIfAbsent(provider, ProviderSession::new);
+        final Subscription sub = new Subscription(intervalMs);
+        final Subscription previous = session.subs.put(listener, sub);
+        if (previous != null) {
+            sub.lastDeliveredMs = previous.lastDeliveredMs;
+        }
+        try {
+            _register(session);
+        }
+        catch (SecurityException | IllegalArgumentException e) {
+            session.subs.remove(listener);
+            throw e;
+        }
+    }
+
+    /** Removes the listener from all providers */
+    public synchronized void unsubscribe(LocationListenerCompat listener)
+    {
+        for (ProviderSession session : mProviders.values()) {
+            if (session.subs.remove(listener) != null) {
+                try {
+                    _register(session);
+                }
+                catch (SecurityException | IllegalArgumentException e) {
+                    Log.e(CLASS_TAG, "Could not update " + session.provider + " request: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as LocationRetriever progressive mode, but fed from the shared GPS request.
+     * A call while one with the same target is running joins it.
+     */
+    public void getAccurateLocationWithGPS(long delay_ms, int targetAccM, @NonNull LocationRetriever.LocCb cb)
+    {
+        _joinOrStart("gps:" + targetAccM, cb,
+                fanOut -> LocationRetriever.getAccurateLocation(this, delay_ms, targetAccM, fanOut, mAppCtx));
+    }
+
+    /** See LocationRetriever.raceProviders. A call while a race with the same rules is running joins it */
+    public void raceProviders(long delay_ms, @NonNull LocationRetriever.LocCb cb, LocationRetriever.ProviderRule... rules)
+    {
+        _joinOrStart("race:" + Arrays.toString(rules), cb,
+                fanOut -> LocationRetriever.raceProviders(this, delay_ms, fanOut, mAppCtx, rules));
+    }
+
+    private void _joinOrStart(String key, LocationRetriever.LocCb cb, Consumer<LocationRetriever.LocCb> start)
+    {
+        synchronized (this) {
+            final ArrayList<LocationRetriever.LocCb> joined = mInFlight.get(key);
+            if (joined != null) {
+                joined.add(cb);
+                return;
+            }
+            mInFlight.put(key, new ArrayList<>(Arrays.asList(cb)));
+        }
+        start.accept((Location loc, String msg) -> {
+            final ArrayList<LocationRetriever.LocCb> cbs;
+            synchronized (LocationHub.this) {
+                cbs = mInFlight.remove(key);
+            }
+            for (LocationRetriever.LocCb c : cbs) {
+                c.onLocationRcvd(loc, msg);
+            }
+        });
+    }
+
+    // called with the lock held
+    private void _register(ProviderSession session)
+    {
+        long intervalMs = Long.MAX_VALUE;
+        for (Subscription sub : session.subs.values()) {
+            intervalMs = Math.min(intervalMs, sub.intervalMs);
+        }
+        if (session.subs.isEmpty()) {
+            if (session.registeredMs != 0) {
+                mLocMngr.removeUpdates(session);
+                session.registeredMs = 0;
+                Log.d(CLASS_TAG, session.provider + " updates stopped");
+            }
+        }
+        else if (intervalMs != session.registeredMs) {
+            // replaces the previous registration, restarts the provider
+            session.registeredMs = 0;
+            mLocMngr.requestLocationUpdates(session.provider, intervalMs, 0, session, Looper.getMainLooper());
+            session.registeredMs = intervalMs;
+            Log.d(CLASS_TAG, session.provider + " updates every " + intervalMs + " ms");
+        }
+    }
+
+    private void _dispatch(ProviderSession session, Location location)
+    {
+        final ArrayList<LocationListenerCompat> targets = new ArrayList<>(session.subs.size());
+        synchronized (this) {
+            final long now = SystemClock.elapsedRealtime();
+            for (Map.Entry<LocationListenerCompat, Subscription> e : session.subs.entrySet()) {
+                // updates do not come exactly on time, do not skip one for being a bit early
+                if (now - e.getValue().lastDeliveredMs >= e.getValue().intervalMs * 9 / 10) {
+                    e.getValue().lastDeliveredMs = now;
+                    targets.add(e.getKey());
+                }
+            }
+        }
+        // outside the lock, listeners call back into subscribe/unsubscribe
+        for (LocationListenerCompat listener : targets) {
+            listener.onLocationChanged(location);
+        }
+
+        AppExecutor.getInstance().execute(() -> {
+            final LastFixFile LASTFIX = LastFixFile.getInstance(mAppCtx);
+            if (LASTFIX.offer(GpsData.fromLocationAndBat(location, Utils.getBatteryPct(mAppCtx)))) {
+                LASTFIX.writeFileAsync();
+            }
+        });
+    }
+}
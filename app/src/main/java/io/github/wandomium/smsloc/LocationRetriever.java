@@ -18,43 +18,55 @@ package io.github.wandomium.smsloc;
 
 import android.content.Context;
 import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
-import android.os.Build;
-import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.core.location.LocationListenerCompat;
 
-import java.util.Timer;
-import java.util.TimerTask; //TODO: TimerTask will never become a demon. keeps alive
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.function.Consumer;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import io.github.wandomium.smsloc.data.file.FixTimeFile;
 import io.github.wandomium.smsloc.data.file.LogFile;
+import io.github.wandomium.smsloc.defs.SmsLoc_Common;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
 
 /**
- * Single use class for retrieving location
+ * Single use class for retrieving location. Fixes always come from the LocationHub's
+ * shared request of the provider, use the LocationHub methods to start one.
  */
-public class LocationRetriever implements Consumer<Location>, LocationListenerCompat
+public class LocationRetriever implements LocationListenerCompat
 {
     private final static String CLASS_TAG = LocationRetriever.class.getSimpleName();
 
-    private Timer mToutTimer;
+    private ScheduledFuture<?> mToutFuture;
     private LocCb mLocCb;
 
-    private CancellationSignal mCancelSignal;
-    private Context mCtx; //we need this stored for API29 to unregister calls
-    private ExecutorService mExecutor;
+    private Context mCtx;
 
     private boolean mCallFinished = false;
 
-    private LocationRetriever(LocCb cb, Context ctx) {
+    // progressive mode: keep listening until a fix is at least this accurate, 0 = first fix wins
+    private final int mTargetAccM;
+    private Location mBestFix;
+    private long mStartMs;
+    private long mFirstFixMs = -1;
+    private long mDeadlineMs;
+    private String mProvider;
+    // fixes come from the hub's shared request of the provider
+    private LocationHub mHub;
+
+    private LocationRetriever(LocationHub hub, LocCb cb, Context ctx) {
+        this(hub, cb, ctx, 0);
+    }
+    private LocationRetriever(LocationHub hub, LocCb cb, Context ctx, int targetAccM) {
+        mHub = hub;
         mLocCb = cb;
         mCtx = ctx;
-        mExecutor = Executors.newSingleThreadExecutor();
+        mTargetAccM = targetAccM;
     }
 
     @FunctionalInterface
@@ -62,72 +74,187 @@ public class LocationRetriever implements Consumer<Location>, LocationListenerCo
         void onLocationRcvd(Location loc, String msg);
     }
 
-    /** Executes one call to getLocations and then terminates
+    /**
+     * Listens to GPS updates until a fix with accuracy <= targetAccM arrives, or returns
+     * the most accurate fix seen when delay_ms expires (null if there was none).
+     * Time to first fix and time to accurate fix are reported in the callback msg.
+     * <p>
+     * Use LocationHub.getAccurateLocationWithGPS, this is the part that runs on it.
      */
-    public static void getLocationWithGPS(long delay_ms, @NonNull LocCb cb, @NonNull Context ctx) {
-        new LocationRetriever(cb, ctx)._getLocation(delay_ms, LocationManager.GPS_PROVIDER);
+    static void getAccurateLocation(@NonNull LocationHub hub, long delay_ms, int targetAccM, @NonNull LocCb cb, @NonNull Context ctx) {
+        new LocationRetriever(hub, cb, ctx, Math.max(1, targetAccM))._getLocation(delay_ms, LocationManager.GPS_PROVIDER);
     }
 
     /**
-     * This one should only be used when the user is running the app (same
-     * wat the map gets location indoors).
+     * A provider taking part in raceProviders and the accuracy its fix needs to win the race
+     * @param provider LocationManager provider name
+     */
+    public record ProviderRule(String provider, int maxAccM) {}
+
+    /**
+     * Queries all providers at the same time instead of falling back one after another.
+     * The first fix that meets its provider's rule wins and the other requests are cancelled.
+     * If none does, the most accurate fix any provider returned is used.
+     * <p>
+     * Providers that are missing (network on some ROMs) or disabled are skipped.
+     * Every racer subscribes to the hub, a provider that is already running for someone else
+     * is shared and not started a second time. Losers unsubscribe when they are cancelled.
      * <p>
-     * It is dicey to use it with requestLocation because it will also work
-     * indoor and this is an outdoor app
+     * Use LocationHub.raceProviders, this is the part that runs on it.
      */
-    @Deprecated
-    public static void getLocationWithNetwork(long delay_ms, @NonNull LocCb cb, @NonNull Context ctx) {
-        LocationManager locMngr = (LocationManager) ctx.getSystemService(Context.LOCATION_SERVICE);
-        if (locMngr.getAllProviders().contains(LocationManager.NETWORK_PROVIDER)
-                && locMngr.isProviderEnabled(LocationManager.NETWORK_PROVIDER) )
-        {
-            // Some ROMs don't have this - LineageOS for example.
-            // Avoid unnecessary reports of missing provider
-            new LocationRetriever(cb, ctx)._getLocation(delay_ms, LocationManager.NETWORK_PROVIDER);
+    static void raceProviders(@NonNull LocationHub hub, long delay_ms, @NonNull LocCb cb, @NonNull Context ctx,
+                              ProviderRule... rules)
+    {
+        final LocationManager locMngr = (LocationManager) ctx.getSystemService(Context.LOCATION_SERVICE);
+        final Race race = new Race(cb);
+        final ArrayList<ProviderRule> started = new ArrayList<>(rules.length);
+        for (ProviderRule rule : rules) {
+            if (locMngr.getAllProviders().contains(rule.provider()) && locMngr.isProviderEnabled(rule.provider())) {
+                race.mRunners.add(new LocationRetriever(hub,
+                        (loc, msg) -> race._onResult(rule, loc, msg), ctx));
+                started.add(rule);
+            }
+        }
+        if (started.isEmpty()) {
+            cb.onLocationRcvd(null, "No location provider enabled");
+            return;
+        }
+        race.mPending = started.size();
+        for (int i = 0; i < started.size(); i++) {
+            race.mRunners.get(i)._getLocation(delay_ms, started.get(i).provider());
         }
     }
 
-    /** Consumer<Location> method (for API >= 30)
-     * Can have null if call failed
-     */
-    @Override
-    public final void accept(Location location) {
-        _finishCall(location, location != null ? "GPS fix OK" : "GPS fix FAIL");
+    /** Stops the request, the callback is still called (with null) if it was not already */
+    private void _cancel() {
+        _finishCall(null, "Cancelled");
     }
-    /** LocationListener method (API 29 version of accept method)
-     * only called on success
-     */
+
+    private static final class Race
+    {
+        private final LocCb mCb;
+        // all added before any is started, not modified afterwards
+        private final ArrayList<LocationRetriever> mRunners = new ArrayList<>();
+        private int mPending;
+        private boolean mDone = false;
+        private Location mBest;
+        private String mBestMsg;
+
+        private Race(LocCb cb) {
+            mCb = cb;
+        }
+
+        // runners call this holding their own lock, never cancel them while holding ours
+        private void _onResult(ProviderRule rule, Location loc, String msg)
+        {
+            final Location result;
+            final String resultMsg;
+            synchronized (this) {
+                if (mDone) {
+                    return;
+                }
+                mPending--;
+                if (loc != null && loc.hasAccuracy() && loc.getAccuracy() <= rule.maxAccM()) {
+                    result = loc;
+                    resultMsg = msg;
+                }
+                else {
+                    if (loc != null && (mBest == null || (loc.hasAccuracy()
+                            && (!mBest.hasAccuracy() || loc.getAccuracy() < mBest.getAccuracy())))) {
+                        mBest = loc;
+                        mBestMsg = msg;
+                    }
+                    if (mPending > 0) {
+                        return;
+                    }
+                    result = mBest;
+                    resultMsg = mBest != null ? mBestMsg : "No fix from any provider";
+                }
+                mDone = true;
+            }
+            for (LocationRetriever runner : mRunners) {
+                runner._cancel(); // no-op for the finished ones
+            }
+            mCb.onLocationRcvd(result, resultMsg);
+        }
+    }
+
+    /** Fix from the hub, only called on success */
     @Override
     public void onLocationChanged(@NonNull Location location) {
-        _finishCall(location, "GPS fix OK");
+        if (mTargetAccM > 0) {
+            _onProgressiveFix(location);
+        }
+        else {
+            _finishCall(location, mProvider + " fix OK");
+        }
     }
 
-    private void _getLocation(final long delay_ms, String provider)
+    private synchronized void _onProgressiveFix(@NonNull Location location)
     {
-        mToutTimer    = new Timer();
+        if (mCallFinished) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (mFirstFixMs < 0) {
+            mFirstFixMs = now;
+        }
+        // a fix without accuracy is only better than nothing
+        if (mBestFix == null || (location.hasAccuracy()
+                && (!mBestFix.hasAccuracy() || location.getAccuracy() <= mBestFix.getAccuracy()))) {
+            mBestFix = location;
+        }
+        if (location.hasAccuracy() && location.getAccuracy() <= mTargetAccM) {
+            _recordFixTime(now - mStartMs);
+            _finishCall(location, String.format(SmsLoc_Common.LOCALE,
+                    "%s fix OK, acc %.0f m, TTFF %.1f s, accurate fix %.1f s",
+                    mProvider, location.getAccuracy(), (mFirstFixMs - mStartMs) / 1000.0, (now - mStartMs) / 1000.0));
+        }
+    }
+
+    private synchronized void _onDeadline()
+    {
+        if (mCallFinished) {
+            return;
+        }
+        if (mTargetAccM > 0) {
+            _recordFixTime(-1);
+        }
+        if (mBestFix == null) {
+            _finishCall(null, mProvider + " fix timeout");
+            return;
+        }
+        _finishCall(mBestFix, String.format(SmsLoc_Common.LOCALE,
+                "%s fix OK, best acc %.0f m (target %d m not reached), TTFF %.1f s",
+                mProvider, mBestFix.getAccuracy(), mTargetAccM, (mFirstFixMs - mStartMs) / 1000.0));
+    }
 
-        LocationManager locMngr = (LocationManager) mCtx.getSystemService(Context.LOCATION_SERVICE);
+    /** Feeds the adaptive timeout, see FixTimeFile */
+    private void _recordFixTime(long fixMs)
+    {
+        final FixTimeFile FIXTIME = FixTimeFile.getInstance(mCtx);
+        // provider names are lower case
+        FIXTIME.addSample(mProvider.toLowerCase(SmsLoc_Common.LOCALE), fixMs, mDeadlineMs);
+        FIXTIME.writeFileAsync();
+    }
 
-        // TODO: (This only works with play services enabled no-go for F-droid)
-        // When we will target <=31 we can remove the timertask and simply set the timeout
-        // trough LocationRequest
-        // LocationRequest.Builder locRequest = new LocationRequest.Builder(0).setDurationMillis(delay_ms).set;
+    private synchronized void _getLocation(final long delay_ms, String provider)
+    {
+        if (mCallFinished) {
+            return; // cancelled before it was started
+        }
+        mProvider = provider.toUpperCase(SmsLoc_Common.LOCALE); //for messages
 
+        mStartMs = SystemClock.elapsedRealtime();
+        mDeadlineMs = delay_ms;
         try {
-            if (Build.VERSION.SDK_INT <= 29) {
-                // this one waits for MAX_SINGLE_LOCATION_TIMEOUT_MS = 30 * 1000. We want control over wait time
-                // locMngr.requestSingleUpdate(provider, this, null);
-                locMngr.requestLocationUpdates(provider, 1000, 500, this);
-            }
-            else {
-                mCancelSignal = new CancellationSignal();
-                // This method may return locations from the very recent past (on the order of several seconds),
-                // but will never return older locations (for example, several minutes old or older).
-                // Checked: consumer is null-ed so we are safe here
-                locMngr.getCurrentLocation(
-                        provider, mCancelSignal, mExecutor, this);
-            }
-            mToutTimer.schedule(new ToutTimerTask(), delay_ms);
+            // never our own LocationManager request, it would run next to the hub's one.
+            // Progressive mode wants to see the fixes improve, others finish on the first one
+            mHub.subscribe(provider, this, LocationHub.ONE_SHOT_INTERVAL_MS);
+            //using CountdownLatch instead of timer task caused
+            //app not responding reports
+            mToutFuture = AppExecutor.getInstance().schedule(
+                    this::_onDeadline, delay_ms, TimeUnit.MILLISECONDS);
         }
         catch (IllegalStateException e) { //task canceled/completed, itd.
             _finishCall(null, e.getMessage());
@@ -145,7 +272,7 @@ public class LocationRetriever implements Consumer<Location>, LocationListenerCo
     }
 
     // Update with new location and clear all references
-    private void _finishCall(Location location, String msg)
+    private synchronized void _finishCall(Location location, String msg)
     {
         Log.d(CLASS_TAG, "_finishCall");
         // For API29: Handles a race condition when timer expires but we get a
@@ -156,34 +283,19 @@ public class LocationRetriever implements Consumer<Location>, LocationListenerCo
         }
         mCallFinished = true;
 
-        mToutTimer.cancel();
-        if (Build.VERSION.SDK_INT <= 29) {
-            ((LocationManager) mCtx.getSystemService(Context.LOCATION_SERVICE)).removeUpdates(this);
-        }
-        else {
-            mCancelSignal.cancel();
+        if (mToutFuture != null) {
+            mToutFuture.cancel(false);
         }
+        mHub.unsubscribe(this);
 
         Log.d(CLASS_TAG, "location callback");
         mLocCb.onLocationRcvd(location, msg);
 
-//        mExecutor.shutdownNow();
-        mExecutor.shutdown();
-
         // null all references to avoid dangling
-        mCancelSignal = null;
+        mToutFuture = null;
         mCtx   = null;
         mLocCb = null;
-        mExecutor = null;
-    }
-
-    //using CountdownLatch instead of timer task caused
-    //app not responding reports
-    private class ToutTimerTask extends TimerTask
-    {
-        @Override
-        public void run() {
-            _finishCall(null, "GPS fix timeout");
-        }
+        mBestFix = null;
+        mHub = null;
     }
 }
\ No newline at end of file
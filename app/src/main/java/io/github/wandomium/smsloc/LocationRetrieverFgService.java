@@ -23,22 +23,33 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.util.Log;
 
+import io.github.wandomium.smsloc.data.file.FixTimeFile;
+import io.github.wandomium.smsloc.data.file.LastFixFile;
+import io.github.wandomium.smsloc.data.file.LogFile;
+import io.github.wandomium.smsloc.data.file.MyTrackFile;
 import io.github.wandomium.smsloc.data.unit.GpsData;
+import io.github.wandomium.smsloc.data.unit.GpsSmsCodec;
 import io.github.wandomium.smsloc.defs.SmsLoc_Common;
 import io.github.wandomium.smsloc.toolbox.ABaseFgService;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
 import io.github.wandomium.smsloc.defs.SmsLoc_Intents;
 import io.github.wandomium.smsloc.defs.SmsLoc_Settings;
 import io.github.wandomium.smsloc.toolbox.Utils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Used to get GPS location when SMS request comes in
+ * and to run tracking sessions (see TrackingSession)
  <p>
- * EntryDataT = Integer and represents wakeLockId
+ * EntryDataT = Request with the wakeLockId and the response format the requester reads
  * it can be retrieved with call to QueueEntry.data()
  */
-public class LocationRetrieverFgService extends ABaseFgService<Integer> implements LocationRetriever.LocCb
+public class LocationRetrieverFgService extends ABaseFgService<LocationRetrieverFgService.Request> implements LocationRetriever.LocCb
 {
     private static final String CLASS_TAG = LocationRetrieverFgService.class.getSimpleName();
 
@@ -49,12 +60,22 @@ public class LocationRetrieverFgService extends ABaseFgService<Integer> implemen
 
     private ArrayList<String> mDetails;
     private String mCallStatus;
+    /** @param trail null if only the current location was requested */
+    public record Request(int wakeLockId, boolean compact, SmsUtils.TrailQuery trail){}
+
     private String mSmsText;
+    private String mSmsTextCompact;
+    private final StringBuilder mSmsBuilder = new StringBuilder(64);
+
+    private Long mGpsTimeoutMs;
 
-    private Integer mGpsTimeout;
+    // tracking sessions run alongside the queue, the service stops when both are done
+    private static final Set<String> sTrackedAddrs = ConcurrentHashMap.newKeySet();
+    private HashMap<String, TrackingSession> mSessions;
+    private int mLastStartId;
 
     public LocationRetrieverFgService() {
-        super(TITLE_PREFIX, STATUS_PREFIX, NOT_ID, ServiceInfo.FOREGROUND_SERVICE_TYPE_LOCATION);
+        super(TITLE_PREFIX, STATUS_PREFIX, NOT_ID, ServiceInfo.FOREGROUND_SERVICE_TYPE_LOCATION, Request.class);
     }
 
     @Override
@@ -63,16 +84,20 @@ public class LocationRetrieverFgService extends ABaseFgService<Integer> implemen
 
         mDetails = new ArrayList<>();
         mCallStatus = "UNKNOWN";
+        mSessions = new HashMap<>();
 
         // it is ok to get it here. subsequent calls to start will not start a new GPS fix
         // when location cb returns, all calls will be stopped (queue will be drained)
         // and service onDestroy called
-        mGpsTimeout = SmsLoc_Settings.GPS_TIMEOUT.getInt(this);
+        mGpsTimeoutMs = getGpsTimeoutMs(this);
+
+        // keeps the fresh fix cache fed between requests
+        PassiveLocationReceiver.register(this);
 
         // create custom service notification
         mServiceNotification = mNotHandler.createOngoigNotification(
     "Location request",
-                String.format("Waiting for GPS fix. Timeout is %s min", mGpsTimeout),
+                String.format(SmsLoc_Common.LOCALE, "Waiting for GPS fix. Timeout is %d s", mGpsTimeoutMs / 1000),
                 null
         );
     }
@@ -82,50 +107,250 @@ public class LocationRetrieverFgService extends ABaseFgService<Integer> implemen
         if (mDetails != null) {
             mDetails.clear();
         }
+        if (mSessions != null) {
+            final ArrayList<TrackingSession> sessions = new ArrayList<>(mSessions.values());
+            mSessions = null;
+            for (TrackingSession session : sessions) {
+                sTrackedAddrs.remove(session.getAddr());
+                session.stop("service stopped");
+            }
+        }
 
         mDetails = null;
         mCallStatus = null;
         mSmsText = null;
-        mGpsTimeout = null;
+        mSmsTextCompact = null;
+        mGpsTimeoutMs = null;
+
+        super.onDestroy();
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId)
     {
         super.onStartCommand(intent, flags, startId);
+        mLastStartId = startId;
 
+        final String addr = intent.getStringExtra(SmsLoc_Intents.EXTRA_ADDR);
+        if (intent.getBooleanExtra(SmsLoc_Intents.EXTRA_TRACK_STOP, false)) {
+            final TrackingSession session = mSessions.get(addr);
+            if (session != null) {
+                session.stop("stopped by requester");
+            }
+            _stopIfIdle();
+            return START_NOT_STICKY;
+        }
+
+        // requests a killed instance did not answer get the same fix
+        final boolean wasIdle = mQueue.isEmpty();
+        replayOutbox(startId);
+        if (intent.getBooleanExtra(SmsLoc_Intents.EXTRA_REPLAY, false)) {
+            if (mQueue.isEmpty()) {
+                stopAfterEmptyReplay(startId);
+                return START_NOT_STICKY;
+            }
+        }
+        else {
+            _startRequest(startId, addr, intent);
+        }
+        // if this is the first in queue, start GPS, otherwise we assume it is running
+        if (wasIdle && !mQueue.isEmpty()) {
+            _startFix();
+        }
+        return START_NOT_STICKY;
+    }
+
+    /** Tracking sessions start right away, other requests wait in the queue for the fix */
+    private void _startRequest(int startId, String addr, Intent intent)
+    {
         // Create a new entry for the queue
-        final QueueEntry<Integer> qEntry = new QueueEntry<>(
+        final QueueEntry<Request> qEntry = new QueueEntry<>(
                 startId,
-                intent.getStringExtra(SmsLoc_Intents.EXTRA_ADDR),
-                intent.getIntExtra(SmsLoc_Intents.EXTRA_WAKE_LOCK_ID, SmsReceiver.INVALID_WAKE_LOCK_ID)
+                addr,
+                new Request(
+                    intent.getIntExtra(SmsLoc_Intents.EXTRA_WAKE_LOCK_ID, SmsReceiver.INVALID_WAKE_LOCK_ID),
+                    intent.getBooleanExtra(SmsLoc_Intents.EXTRA_COMPACT, false),
+                    intent.hasExtra(SmsLoc_Intents.EXTRA_TRAIL_POINTS) ? new SmsUtils.TrailQuery(
+                        intent.getIntExtra(SmsLoc_Intents.EXTRA_TRAIL_POINTS, SmsUtils.TRAIL_DEFAULT_POINTS),
+                        intent.getLongExtra(SmsLoc_Intents.EXTRA_TRAIL_SINCE, 0)) : null)
         );
 
+        if (intent.hasExtra(SmsLoc_Intents.EXTRA_TRACK_INTERVAL)) {
+            _startSession(qEntry, new SmsUtils.TrackQuery(
+                    intent.getIntExtra(SmsLoc_Intents.EXTRA_TRACK_INTERVAL, SmsUtils.TRACK_DEFAULT_INTERVAL_S),
+                    intent.getIntExtra(SmsLoc_Intents.EXTRA_TRACK_DURATION, SmsUtils.TRACK_DEFAULT_DURATION_S),
+                    intent.getIntExtra(SmsLoc_Intents.EXTRA_TRACK_MAX_SMS, SmsUtils.TRACK_DEFAULT_MAX_SMS)));
+        }
         // Start foreground service within 5s after call to onStartCommand
-        if (enqueueEntry(qEntry)) {
-            if (mQueue.size() == 1) {
-                // if this is the first in queue, start GPS, otherwise we assume it is running
-                mDetails.clear();
-                mCallStatus = "OK";
-                mSmsText = SmsUtils.RESPONSE_CODE + SmsLoc_Common.Consts.GPS_DATA_INVALID_ERR_STR;
-                LocationRetriever.getLocationWithGPS(
-                        (long) mGpsTimeout * Utils.MIN_2_MS, this, this
-                );
-            }
+        else {
+            enqueueEntry(qEntry);
+        }
+    }
+
+    private void _startFix()
+    {
+        mDetails.clear();
+        mCallStatus = "OK";
+        mSmsText = SmsUtils.RESPONSE_CODE + SmsLoc_Common.Consts.GPS_DATA_INVALID_ERR_STR;
+        mSmsTextCompact = null;
+        // a fix from the map or another app can be good enough, no need to wake GPS.
+        // The first LastFixFile access loads it, keep that off the main thread. The queue is not
+        // empty meanwhile, so requests that come in are not starting another fix
+        final Context appCtx = getApplicationContext();
+        AppExecutor.getInstance().execute(() -> {
+            final GpsData cached = LastFixFile.getInstance(appCtx).getFresh(LastFixFile.Policy.fromSettings(appCtx));
+            getMainExecutor().execute(() -> _onCacheChecked(cached));
+        });
+    }
+
+    private void _onCacheChecked(GpsData cached)
+    {
+        if (mDetails == null) {
+            return; //destroyed meanwhile
+        }
+        if (cached != null) {
+            mCallStatus = "CACHED";
+            mDetails.add(String.format(SmsLoc_Common.LOCALE, "Fresh fix from cache, %d s old, acc %d m",
+                    (System.currentTimeMillis() - cached.utc) / 1000, cached.acc_m));
+            _respond(new GpsData(cached.lat, cached.lon, cached.alt_m, cached.utc,
+                    cached.v_kmh, cached.acc_m, Utils.getBatteryPct(this)));
+        }
+        else {
+            LocationHub.getInstance(this).getAccurateLocationWithGPS(
+                    mGpsTimeoutMs, SmsLoc_Settings.GPS_TARGET_ACC_M.getInt(this), this
+            );
         }
-        return START_NOT_STICKY;
     }
 
     // IMPL
     @Override
-    protected boolean processEntry(QueueEntry<Integer> qEntry) {
-        return SmsUtils.sendSms(this, qEntry.addr(), mSmsText);
+    protected boolean processEntry(QueueEntry<Request> qEntry) {
+        final Request request = qEntry.data();
+        if (request.trail() != null) {
+            return SmsUtils.sendSms(this, qEntry.addr(), _trailSmsText(request.trail()));
+        }
+        // errors are only sent as text
+        return SmsUtils.sendSms(this, qEntry.addr(),
+                (request.compact() && mSmsTextCompact != null) ? mSmsTextCompact : mSmsText);
+    }
+
+    @Override
+    protected Request onReplay(Request request) {
+        // the wake lock belonged to the process that was killed
+        return new Request(SmsReceiver.INVALID_WAKE_LOCK_ID, request.compact(), request.trail());
+    }
+
+    @Override
+    protected boolean isSameResponse(QueueEntry<Request> a, QueueEntry<Request> b) {
+        // wake lock ids differ, they are released in onProcessEntryDone for every entry
+        return a.addr().equals(b.addr()) && a.data().compact() == b.data().compact()
+                && Objects.equals(a.data().trail(), b.data().trail());
+    }
+
+    /** Newest fixes that fit in one SMS, the current one included if we got it */
+    private String _trailSmsText(SmsUtils.TrailQuery trail)
+    {
+        final ArrayList<GpsData> points =
+                MyTrackFile.getInstance(this).getTrail(trail.maxPoints(), trail.sinceUtc());
+        if (points.isEmpty()) {
+            return mSmsTextCompact != null ? mSmsTextCompact : mSmsText;
+        }
+        mSmsBuilder.setLength(0);
+        GpsSmsCodec.append(mSmsBuilder.append(SmsUtils.RESPONSE_CODE_COMPACT), points, SmsUtils.SMS_MAX_LEN);
+        return mSmsBuilder.toString();
     }
     // OVERRIDES
     @Override
-    protected void onProcessEntryDone(QueueEntry<Integer> queueEntry) {
-        super.onProcessEntryDone(queueEntry);
-        SmsReceiver.releaseWakeLock(queueEntry.data());
+    protected void onProcessEntryDone(QueueEntry<Request> queueEntry) {
+        // not stopSelf(startId), a session can outlive the last request
+        SmsReceiver.releaseWakeLock(queueEntry.data().wakeLockId());
+        _stopIfIdle();
+    }
+    @Override
+    protected boolean stayInForeground() {
+        return mSessions != null && !mSessions.isEmpty();
+    }
+
+    /**
+     * GPS_TIMEOUT is the upper limit, below it the timeout adapts to how long fixes
+     * took recently (see FixTimeFile). SmsReceiver holds its wake lock for the same time
+     */
+    public static long getGpsTimeoutMs(Context ctx)
+    {
+        return FixTimeFile.getInstance(ctx).getTimeoutMs(LocationManager.GPS_PROVIDER,
+                (long) SmsLoc_Settings.GPS_TIMEOUT.getInt(ctx) * Utils.MIN_2_MS);
+    }
+
+    /** @return true if we are sending periodic updates to addr */
+    public static boolean isTracking(String addr) {
+        return sTrackedAddrs.contains(addr);
+    }
+
+    // TRACKING SESSIONS
+    private void _startSession(QueueEntry<Request> qEntry, SmsUtils.TrackQuery query)
+    {
+        if (!enterForeground(qEntry)) {
+            return;
+        }
+        final TrackingSession session = new TrackingSession(this, qEntry.addr(), query,
+                SmsLoc_Settings.TRACK_MOTION_AWARE.getBool(this) ? new MotionAwareSampling() : SamplingPolicy.FIXED,
+                this::_onSessionFinished);
+        if (!session.start()) {
+            onStartFailed(qEntry, "Could not start tracking (check log)");
+            return;
+        }
+        // replace before stopping, so the service does not see itself idle in between
+        final TrackingSession previous = mSessions.put(qEntry.addr(), session);
+        sTrackedAddrs.add(qEntry.addr());
+        if (previous != null) {
+            previous.stop("replaced by a new session");
+        }
+
+        LogFile.getInstance(this).addLogEntry(String.format("Tracking %s: %s",
+                Utils.getDisplayName(this, qEntry.addr()), session.describe()));
+        _postSessionNotification();
+
+        // location updates wake us up from here on
+        SmsReceiver.releaseWakeLock(qEntry.data().wakeLockId());
+    }
+
+    private void _onSessionFinished(TrackingSession session, String reason)
+    {
+        if (mSessions != null && mSessions.get(session.getAddr()) == session) {
+            mSessions.remove(session.getAddr());
+            sTrackedAddrs.remove(session.getAddr());
+        }
+        final String detail = String.format(SmsLoc_Common.LOCALE, "%d locations in %d SMS, %d unchanged skipped",
+                session.getNumFixes(), session.getNumSent(), session.getNumSkipped());
+        mNotHandler.createAndPostNotification(
+                "Tracking " + Utils.getDisplayName(this, session.getAddr()), "Tracking " + reason, detail);
+        LogFile.getInstance(this).addLogEntry(String.format("Tracking %s %s: %s",
+                Utils.getDisplayName(this, session.getAddr()), reason, detail));
+
+        if (mSessions == null) {
+            return; //destroyed
+        }
+        if (!mSessions.isEmpty()) {
+            _postSessionNotification();
+        }
+        else if (mQueue.isEmpty()) {
+            stopForeground(STOP_FOREGROUND_REMOVE);
+        }
+        _stopIfIdle();
+    }
+
+    private void _postSessionNotification()
+    {
+        startForeground(cNotId, mNotHandler.createOngoigNotification(
+                "Location tracking", "Sending location to " + mSessions.size() + " requester(s)", null));
+    }
+
+    private void _stopIfIdle()
+    {
+        if (mQueue != null && mQueue.isEmpty() && (mSessions == null || mSessions.isEmpty())) {
+            // only stops if there was no start after mLastStartId
+            stopSelf(mLastStartId);
+        }
     }
 
     // LOCATION RECEIVER
@@ -149,12 +374,31 @@ public class LocationRetrieverFgService extends ABaseFgService<Integer> implemen
         GpsData gpsData =
             GpsData.fromLocationAndBat(loc, Utils.getBatteryPct(this));
 
+        final LastFixFile LASTFIX = LastFixFile.getInstance(this);
+        if (LASTFIX.offer(gpsData)) {
+            LASTFIX.writeFileAsync();
+        }
+        _respond(gpsData);
+    }
+
+    /** Builds the response texts and answers everyone in the queue */
+    private void _respond(GpsData gpsData)
+    {
         if (!gpsData.dataValid()) {
             mCallStatus = "INVALID";
             mDetails.add("GPS data invalid");
         }
 
-        mSmsText = SmsUtils.RESPONSE_CODE + gpsData.toSmsText();
+        mSmsBuilder.setLength(0);
+        mSmsText = gpsData.appendSmsText(mSmsBuilder.append(SmsUtils.RESPONSE_CODE)).toString();
+        if (gpsData.dataValid()) {
+            final MyTrackFile MYTRACK = MyTrackFile.getInstance(this);
+            MYTRACK.addLocation(gpsData);
+            MYTRACK.writeFileAsync();
+
+            mSmsBuilder.setLength(0);
+            mSmsTextCompact = GpsSmsCodec.append(mSmsBuilder.append(SmsUtils.RESPONSE_CODE_COMPACT), gpsData).toString();
+        }
         // In some bizarre situation where we get crazy amounts of location requests,
         // this could loop forever but it is not a realistic scenario
         getMainExecutor().execute(() -> drainQueue(
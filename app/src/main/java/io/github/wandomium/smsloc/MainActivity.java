@@ -26,6 +26,7 @@ import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
 
+import io.github.wandomium.smsloc.data.file.LocationHistory;
 import io.github.wandomium.smsloc.data.file.LogFile;
 import io.github.wandomium.smsloc.data.file.SmsDayDataFile;
 import io.github.wandomium.smsloc.data.file.PeopleDataFile;
@@ -46,11 +47,10 @@ import android.view.MenuItem;
 import android.widget.Toast;
 
 import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import io.github.wandomium.smsloc.defs.SmsLoc_Intents;
 import io.github.wandomium.smsloc.defs.SmsLoc_Settings;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
 import io.github.wandomium.smsloc.toolbox.NotificationHandler;
 import io.github.wandomium.smsloc.toolbox.Utils;
 import io.github.wandomium.smsloc.ui.dialogs.SimSelectorDialogFragment;
@@ -89,13 +89,11 @@ public class MainActivity extends AppCompatActivity
         mCreated = true;
 
         /* Pre-load all files so we don't get StrictMode violations */
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(() -> {
+        AppExecutor.getInstance().execute(() -> {
             LogFile.getInstance(this);
             PeopleDataFile.getInstance(this);
             SmsDayDataFile.getInstance(this);
-
-            executor.shutdown();
+            LocationHistory.getInstance(this).refresh();
         });
 
         /* Setup view
@@ -174,7 +172,7 @@ public class MainActivity extends AppCompatActivity
     @Override
     protected void onPause()
     {
-        Utils.closeAllFiles(this);
+        Utils.flushAllFiles();
         mIsPaused = true;
         super.onPause();
     }
@@ -187,6 +185,8 @@ public class MainActivity extends AppCompatActivity
         NotificationHandler.getInstance(this).clearAllNotifications();
         MainActivity.this.mPermissionMngr.refreshPermissions();
         invalidateOptionsMenu(); //permission or battery settings alert
+        // permissions could have been granted in the meantime, registration is lost on reboot
+        PassiveLocationReceiver.register(this);
     }
 
     @Override
@@ -0,0 +1,84 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import io.github.wandomium.smsloc.data.unit.GpsData;
+
+/**
+ * Skips fixes that did not move from the last sent one by more than the fix accuracy
+ * (and at least minMoveM), but sends one every heartbeat so the requester knows we are
+ * still there. While stationary the interval is stretched up to maxIntervalFactor times
+ * the requested one, when moving it is shortened so the points are about spacingM apart,
+ * but not below minIntervalMs.
+ */
+public final class MotionAwareSampling implements SamplingPolicy
+{
+    public static final double MIN_MOVE_M_DEFAULT = 50;
+    public static final double SPACING_M_DEFAULT = 300;
+    public static final int MAX_INTERVAL_FACTOR_DEFAULT = 4;
+    public static final int HEARTBEAT_FACTOR_DEFAULT = 10;
+    public static final long MIN_INTERVAL_MS_DEFAULT = 15 * 1000;
+
+    private final double mMinMoveM;
+    private final double mSpacingM;
+    private final int mMaxIntervalFactor;
+    private final int mHeartbeatFactor;
+    private final long mMinIntervalMs;
+
+    public MotionAwareSampling()
+    {
+        this(MIN_MOVE_M_DEFAULT, SPACING_M_DEFAULT,
+                MAX_INTERVAL_FACTOR_DEFAULT, HEARTBEAT_FACTOR_DEFAULT, MIN_INTERVAL_MS_DEFAULT);
+    }
+
+    /** @param heartbeatFactor stationary fixes are still sent every heartbeatFactor base intervals */
+    public MotionAwareSampling(double minMoveM, double spacingM,
+                               int maxIntervalFactor, int heartbeatFactor, long minIntervalMs)
+    {
+        mMinMoveM = minMoveM;
+        mSpacingM = spacingM;
+        mMaxIntervalFactor = Math.max(1, maxIntervalFactor);
+        mHeartbeatFactor = Math.max(1, heartbeatFactor);
+        mMinIntervalMs = minIntervalMs;
+    }
+
+    @NonNull
+    @Override
+    public Decision onFix(@NonNull GpsData fix, @Nullable GpsData lastSent, long baseIntervalMs)
+    {
+        if (lastSent == null) {
+            return new Decision(true, baseIntervalMs);
+        }
+
+        final long dtMs = Math.max(1, fix.utc - lastSent.utc);
+        final double moved = fix.distanceTo(lastSent);
+        // both positions are only known within their accuracy
+        final double noise = Math.max(mMinMoveM, Math.max(0, fix.acc_m) + Math.max(0, lastSent.acc_m));
+
+        if (moved < noise) {
+            final boolean heartbeat = dtMs >= baseIntervalMs * mHeartbeatFactor;
+            return new Decision(heartbeat, baseIntervalMs * mMaxIntervalFactor);
+        }
+
+        final double speedMps = moved * 1000 / dtMs;
+        final long spacedMs = (long) (mSpacingM / speedMps * 1000);
+        return new Decision(true, Math.max(Math.min(mMinIntervalMs, baseIntervalMs), Math.min(spacedMs, baseIntervalMs)));
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.core.content.IntentCompat;
+
+import io.github.wandomium.smsloc.data.file.LastFixFile;
+import io.github.wandomium.smsloc.data.unit.GpsData;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
+import io.github.wandomium.smsloc.toolbox.Utils;
+
+/**
+ * Receives fixes other apps (and we) requested from the passive provider and keeps
+ * them in LastFixFile. The passive provider never turns on GPS by itself.
+ * <p>
+ * Registered with a PendingIntent so it keeps working when the app is not running.
+ * The registration is lost on reboot and force stop, register is called again from
+ * MainActivity and LocationRetrieverFgService.
+ */
+public class PassiveLocationReceiver extends BroadcastReceiver
+{
+    private static final String CLASS_TAG = PassiveLocationReceiver.class.getSimpleName();
+
+    // we only need something recent, not every fix another app gets
+    private static final long MIN_TIME_MS = 30 * 1000;
+
+    /** Safe to call repeatedly, registering the same PendingIntent replaces the old registration */
+    public static void register(Context ctx)
+    {
+        try {
+            ((LocationManager) ctx.getSystemService(Context.LOCATION_SERVICE)).requestLocationUpdates(
+                    LocationManager.PASSIVE_PROVIDER, MIN_TIME_MS, 0, _pendingIntent(ctx));
+        }
+        catch (SecurityException | IllegalArgumentException e) {
+            // no permissions yet, we get called again when the app is opened
+            Log.d(CLASS_TAG, "Passive updates not registered: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent)
+    {
+        final Location loc = IntentCompat.getParcelableExtra(intent, LocationManager.KEY_LOCATION_CHANGED, Location.class);
+        if (loc == null) {
+            return;
+        }
+        final Context appCtx = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        AppExecutor.getInstance().execute(() -> {
+            try {
+                final LastFixFile LASTFIX = LastFixFile.getInstance(appCtx);
+                if (LASTFIX.offer(GpsData.fromLocationAndBat(loc, Utils.getBatteryPct(appCtx)))) {
+                    LASTFIX.writeFileAsync();
+                }
+            }
+            finally {
+                result.finish();
+            }
+        });
+    }
+
+    private static PendingIntent _pendingIntent(Context ctx)
+    {
+        // location is added to the intent by the system, it has to be mutable
+        return PendingIntent.getBroadcast(ctx, 0, new Intent(ctx, PassiveLocationReceiver.class),
+                PendingIntent.FLAG_UPDATE_CURRENT
+                        | (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ? PendingIntent.FLAG_MUTABLE : 0));
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import io.github.wandomium.smsloc.data.unit.GpsData;
+
+/**
+ * Decides which fixes of a tracking session are sent and when the next one is needed.
+ * Pure function of its inputs, so it can be run against recorded tracks.
+ */
+@FunctionalInterface
+public interface SamplingPolicy
+{
+    /**
+     * @param send     false if the fix adds nothing to what was already sent
+     * @param nextIntervalMs how long to wait for the next fix
+     */
+    record Decision(boolean send, long nextIntervalMs){}
+
+    /**
+     * @param fix            new valid fix
+     * @param lastSent       last fix that was sent, null if none yet
+     * @param baseIntervalMs interval the requester asked for
+     */
+    @NonNull
+    Decision onFix(@NonNull GpsData fix, @Nullable GpsData lastSent, long baseIntervalMs);
+
+    /** Every fix at the requested interval */
+    SamplingPolicy FIXED = (fix, lastSent, baseIntervalMs) -> new Decision(true, baseIntervalMs);
+}
@@ -30,12 +30,17 @@ import android.util.SparseArray;
 import com.google.i18n.phonenumbers.NumberParseException;
 
 import io.github.wandomium.smsloc.data.file.LogFile;
+import io.github.wandomium.smsloc.data.file.RateLimitFile;
 import io.github.wandomium.smsloc.data.unit.PersonData;
+import io.github.wandomium.smsloc.data.unit.SmsLocData;
 import io.github.wandomium.smsloc.defs.SmsLoc_Common;
 import io.github.wandomium.smsloc.data.file.SmsDayDataFile;
 import io.github.wandomium.smsloc.data.file.PeopleDataFile;
 import io.github.wandomium.smsloc.data.unit.GpsData;
+import io.github.wandomium.smsloc.data.unit.GpsSmsCodec;
+import io.github.wandomium.smsloc.data.unit.GpsTrack;
 import io.github.wandomium.smsloc.defs.SmsLoc_Intents;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
 import io.github.wandomium.smsloc.toolbox.NotificationHandler;
 import io.github.wandomium.smsloc.defs.SmsLoc_Settings;
 import io.github.wandomium.smsloc.toolbox.Utils;
@@ -44,7 +49,7 @@ import io.github.wandomium.smsloc.toolbox.Utils;
 /**
  * This is the simplest possible broadcast receiver. It is only used to
  * check if the SMS was meant for us and to forward the request to appropriate
- * services.
+ * services. The work is done on a background lane, see onReceive.
  * It is kept as simple as possible since it will run on every received SMS
  * and sine it will execute in the background without explicit notification
  * to the user
@@ -63,6 +68,13 @@ public class SmsReceiver extends BroadcastReceiver//WakefulBroadcastReceiver
 
     private int mCurrentLockId;
 
+    /* SIM country ISO per subscription, cleared when a SIM is inserted, removed or switched */
+    private static final SparseArray<String> sCountryIsoCache = new SparseArray<>();
+    private static SubscriptionManager.OnSubscriptionsChangedListener sSubsChangedListener;
+
+    /* All received SMS are handled here, one after another */
+    private static final AppExecutor.SerialLane PIPELINE = AppExecutor.getInstance().newLane();
+
     @FunctionalInterface
     protected interface SmsHandler {
         String handle(final Context context, final String addr, String... params);
@@ -77,7 +89,29 @@ public class SmsReceiver extends BroadcastReceiver//WakefulBroadcastReceiver
         }
 
         _acquireWakeLock(context);
+        _watchSubscriptions(context);
+
+        // Parsing, file writes and notifications are kept off the main thread. The broadcast
+        // stays active (and the wake lock held) until the data is stored. A single lane keeps
+        // SMS in the order they were received when they come in bursts
+        final Context appCtx = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        PIPELINE.execute(() -> {
+            try {
+                _shortenCurrentWakeLock(appCtx);
+                _handleMessages(appCtx, intent);
+            }
+            finally {
+                /* Synchronously write, make sure it is stored */
+                Utils.flushAllFiles();
+                _releaseCurrentWakeLock();
+                result.finish();
+            }
+        });
+    }
 
+    private void _handleMessages(Context context, Intent intent)
+    {
         //We do not support multipart msgs
         for(SmsMessage sms : Telephony.Sms.Intents.getMessagesFromIntent(intent)) try {
             if (sms == null) {
@@ -96,7 +130,11 @@ public class SmsReceiver extends BroadcastReceiver//WakefulBroadcastReceiver
             // Is it for us?
             final SmsHandler smsHandler = switch (body.substring(0, SmsUtils.CODE_LEN)) {
                 case SmsUtils.REQUEST_CODE -> mRequestHandler;
+                case SmsUtils.REQUEST_TRAIL_CODE -> mTrailRequestHandler;
+                case SmsUtils.REQUEST_TRACK_CODE -> mTrackRequestHandler;
+                case SmsUtils.REQUEST_TRACK_STOP_CODE -> mTrackStopHandler;
                 case SmsUtils.RESPONSE_CODE -> mResponseHandler;
+                case SmsUtils.RESPONSE_CODE_COMPACT -> mCompactResponseHandler;
                 default -> null;
             };
             if (smsHandler == null) {
@@ -104,10 +142,10 @@ public class SmsReceiver extends BroadcastReceiver//WakefulBroadcastReceiver
             }
 
             // We need addr with country code
-            Log.i(CLASS_TAG, _getSmsCountryIso(context, intent));
-            Log.i(CLASS_TAG, addr);
-            addr = SmsUtils.convertToE164PhoneNumFormat(addr,
-                    (addr.startsWith("+") || addr.startsWith("00")) ? null : _getSmsCountryIso(context, intent));
+            final String countryIso =
+                    (addr.startsWith("+") || addr.startsWith("00")) ? null : _getSmsCountryIso(context, intent);
+            Log.i(CLASS_TAG, addr + ", country ISO: " + countryIso);
+            addr = SmsUtils.convertToE164PhoneNumFormat(addr, countryIso);
 
             // Handle message
             final String broadcastAction = smsHandler.handle(context, addr, body.substring(SmsUtils.CODE_LEN));
@@ -120,28 +158,43 @@ public class SmsReceiver extends BroadcastReceiver//WakefulBroadcastReceiver
             LogFile.getInstance(context).addLogEntry("ERROR - could not handle SMS: " + e.getErrorType());
             Log.e(CLASS_TAG, e.toString());
         }
-        finally {
-            /* Synchronously write, make sure it is stored */
-            if (!MainActivity.isCreated()) {
-                Utils.closeAllFiles(context);
-            }
-            _releaseCurrentWakeLock();
-        }
     }
 
     protected final SmsHandler mResponseHandler = (context, addr, params) ->
     {
         final String gpsDataStr = params[0];
+        final GpsData location = GpsData.fromSmsText(gpsDataStr);
+        //we typically try to send reason for fail in sms
+        return _handleResponse(context, addr,
+                SmsLocData.Op.responseReceived(addr, location), location, 1, gpsDataStr);
+    };
+
+    protected final SmsHandler mCompactResponseHandler = (context, addr, params) ->
+    {
+        GpsTrack track;
+        String failDetails = "Empty response";
+        try {
+            track = GpsSmsCodec.decode(params[0], 0);
+        }
+        catch (IllegalArgumentException e) {
+            track = new GpsTrack();
+            failDetails = e.getMessage();
+        }
+        final GpsData location = track.isEmpty() ? GpsData.invalid() : track.last();
+        // a trail is stored with a single journal entry
+        final SmsLocData.Op op = track.size() > 1 ?
+                SmsLocData.Op.trailReceived(addr, track) : SmsLocData.Op.responseReceived(addr, location);
+
+        return _handleResponse(context, addr, op, location, track.size(), failDetails);
+    };
 
+    private String _handleResponse(Context context, final String addr, final SmsLocData.Op op,
+                                   final GpsData location, final int numLocations, final String failDetails)
+    {
         final PeopleDataFile PEOPLEDATA = PeopleDataFile.getInstance(context);
         final SmsDayDataFile DAYDATA = SmsDayDataFile.getInstance(context);
 
-        final GpsData location = GpsData.fromSmsText(gpsDataStr);
-
-        synchronized (DAYDATA.getLockObject())
-        {
-            DAYDATA.referenceOrCreateObject_unlocked(addr).responseReceived(location);
-        }
+        DAYDATA.applyOp(op);
         DAYDATA.writeFileAsync();
 
         String summary = "Response from ";
@@ -155,37 +208,95 @@ public class SmsReceiver extends BroadcastReceiver//WakefulBroadcastReceiver
             summary += PEOPLEDATA.getDataEntry(addr).getDisplayName();
         }
 
-        final String details = location.dataValid() ?
-            String.format("Location from %s ago", Utils.timeToNowHoursStr(location.utc))
-            : gpsDataStr; //we typically try to send reason for fail in sms
+        final String details = !location.dataValid() ? failDetails :
+            (numLocations > 1 ? numLocations + " locations, last" : "Location")
+                + String.format(" from %s ago", Utils.timeToNowHoursStr(location.utc));
 
         NotificationHandler.getInstance(context).createAndPostNotification(summary, status, details);
 
         _releaseCurrentWakeLock();
-        return location.dataValid() ?
-            SmsLoc_Intents.ACTION_NEW_LOCATION : SmsLoc_Intents.ACTION_RESPONSE_RCVD;
-    };
+        if (!location.dataValid()) {
+            return SmsLoc_Intents.ACTION_RESPONSE_RCVD;
+        }
+        return numLocations > 1 ? SmsLoc_Intents.ACTION_NEW_TRAIL : SmsLoc_Intents.ACTION_NEW_LOCATION;
+    }
 
     protected final SmsHandler mRequestHandler = (context, addr, params) ->
+        _handleRequest(context, addr, "Request from ",
+            new Intent().putExtra(SmsLoc_Intents.EXTRA_COMPACT, SmsUtils.acceptsCompactResponse(params[0])));
+
+    protected final SmsHandler mTrailRequestHandler = (context, addr, params) ->
+    {
+        final SmsUtils.TrailQuery trail = SmsUtils.parseTrailRequest(params[0]);
+        return _handleRequest(context, addr, "Trail request from ", new Intent()
+            .putExtra(SmsLoc_Intents.EXTRA_COMPACT, true)
+            .putExtra(SmsLoc_Intents.EXTRA_TRAIL_POINTS, trail.maxPoints())
+            .putExtra(SmsLoc_Intents.EXTRA_TRAIL_SINCE, trail.sinceUtc()));
+    };
+
+    protected final SmsHandler mTrackRequestHandler = (context, addr, params) ->
+    {
+        final SmsUtils.TrackQuery track = SmsUtils.parseTrackRequest(params[0]);
+        return _handleRequest(context, addr, "Tracking request from ", new Intent()
+            .putExtra(SmsLoc_Intents.EXTRA_COMPACT, true)
+            .putExtra(SmsLoc_Intents.EXTRA_TRACK_INTERVAL, track.intervalS())
+            .putExtra(SmsLoc_Intents.EXTRA_TRACK_DURATION, track.durationS())
+            .putExtra(SmsLoc_Intents.EXTRA_TRACK_MAX_SMS, track.maxSms()));
+    };
+
+    protected final SmsHandler mTrackStopHandler = (context, addr, params) ->
+    {
+        // a sender can only stop its own session, no need to check the whitelist
+        if (LocationRetrieverFgService.isTracking(addr)) {
+            LogFile.getInstance(context).addLogEntry("Stop tracking from " + Utils.getDisplayName(context, addr));
+            // service is in foreground while tracking, a plain start is allowed
+            try {
+                context.startService(new Intent(context, LocationRetrieverFgService.class)
+                    .putExtra(SmsLoc_Intents.EXTRA_ADDR, addr)
+                    .putExtra(SmsLoc_Intents.EXTRA_TRACK_STOP, true));
+            }
+            catch (Exception e) {
+                LogFile.getInstance(context).addLogEntry(e.getMessage());
+            }
+        }
+        _releaseCurrentWakeLock();
+        return SmsLoc_Intents.ACTION_REQUEST_RCVD;
+    };
+
+    /** @param extras request type specific extras for LocationRetrieverFgService */
+    private String _handleRequest(Context context, final String addr, final String logPrefix, final Intent extras)
     {
         final PeopleDataFile PEOPLEDATA = PeopleDataFile.getInstance(context);
         final SmsDayDataFile DAYDATA = SmsDayDataFile.getInstance(context);
         final LogFile        LOGFILE = LogFile.getInstance(context);
 
+        // Error responses cost an SMS too, limit before the whitelist check.
+        // Suppressed requests are not answered on their own, the next allowed one answers them
+        final RateLimitFile LIMITER = RateLimitFile.getInstance(context);
+        final int answered = LIMITER.tryAcquire(addr);
+        LIMITER.writeFileAsync();
+        if (answered == RateLimitFile.SUPPRESSED) {
+            LOGFILE.addLogEntry(String.format(SmsLoc_Common.LOCALE, "%s%s rate limited, next answer in %d s: %s",
+                    logPrefix, Utils.getDisplayName(context, addr), LIMITER.msUntilAllowed(addr) / 1000,
+                    LIMITER.getStats(addr)));
+            _releaseCurrentWakeLock();
+            return SmsLoc_Intents.ACTION_REQUEST_RCVD;
+        }
+        if (answered > 0) {
+            LOGFILE.addLogEntry(String.format(SmsLoc_Common.LOCALE, "%s%s answers %d suppressed: %s",
+                    logPrefix, Utils.getDisplayName(context, addr), answered, LIMITER.getStats(addr)));
+        }
 
         if (SmsLoc_Settings.IGNORE_WHITELIST.getBool(context) || PEOPLEDATA.containsId(addr)) {
 
-            synchronized (DAYDATA.getLockObject())
-            {
-                DAYDATA.referenceOrCreateObject_unlocked(addr).requestReceived();
-            }
+            DAYDATA.applyOp(SmsLocData.Op.requestReceived(addr));
             DAYDATA.writeFileAsync();
 
-            Intent intent = new Intent(context, LocationRetrieverFgService.class);
+            Intent intent = new Intent(extras).setClass(context, LocationRetrieverFgService.class);
             intent.putExtra(SmsLoc_Intents.EXTRA_ADDR, addr);
             intent.putExtra(SmsLoc_Intents.EXTRA_WAKE_LOCK_ID, mCurrentLockId);
 
-            LOGFILE.addLogEntry("Request from " + Utils.getDisplayName(context, addr));
+            LOGFILE.addLogEntry(logPrefix + Utils.getDisplayName(context, addr));
             try {
                 context.startForegroundService(intent);
             }
@@ -227,7 +338,7 @@ public class SmsReceiver extends BroadcastReceiver//WakefulBroadcastReceiver
 
             return SmsLoc_Intents.ACTION_NOT_WHITELISTED;
         }
-    };
+    }
 
     public static void releaseWakeLock(int lockId)
     {
@@ -264,10 +375,24 @@ public class SmsReceiver extends BroadcastReceiver//WakefulBroadcastReceiver
                     mCurrentLockId, powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "SmsLoc:SmsReceiver"));
             sActiveWakeLocks.get(mCurrentLockId).setReferenceCounted(false); //only one fo each wake
             //sActiveWakeLocks.get(sNextId).acquire(SmsLoc_Settings.getGpsTimeoutInMin(context) * Utils.MIN_2_MS + 500);
+            // configured maximum, the derived timeout needs FixTimeFile which is not read on the main thread
             sActiveWakeLocks.get(mCurrentLockId).acquire((long) SmsLoc_Settings.GPS_TIMEOUT.getInt(context) * Utils.MIN_2_MS + 500);
         }
     }
 
+    /** Only on the pipeline lane. Re-acquiring a non reference counted lock replaces its timeout */
+    private void _shortenCurrentWakeLock(Context context)
+    {
+        final long timeoutMs = LocationRetrieverFgService.getGpsTimeoutMs(context) + 500;
+        synchronized (INSTANCE_LOCK)
+        {
+            final PowerManager.WakeLock wakeLock = sActiveWakeLocks.get(mCurrentLockId);
+            if (wakeLock != null && wakeLock.isHeld()) {
+                wakeLock.acquire(timeoutMs);
+            }
+        }
+    }
+
     /**
      * SmsMessage.getOriginatingAddress() does not always include country code
      * We need to be able to handle dual SIM operation
@@ -276,11 +401,18 @@ public class SmsReceiver extends BroadcastReceiver//WakefulBroadcastReceiver
      */
     private String _getSmsCountryIso(Context ctx, Intent intent)
     {
+        final int subId = intent.getIntExtra(
+                SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+        synchronized (sCountryIsoCache) {
+            final String cached = sCountryIsoCache.get(subId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         TelephonyManager telService = (TelephonyManager) ctx.getSystemService(Context.TELEPHONY_SERVICE);
         String smsCountryIso;
 
-        final int subId = intent.getIntExtra(
-                SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
         if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
             //fallback to default
             smsCountryIso = telService.getSimCountryIso();
@@ -290,6 +422,31 @@ public class SmsReceiver extends BroadcastReceiver//WakefulBroadcastReceiver
             smsCountryIso = telService.createForSubscriptionId(subId).getSimCountryIso();
         }
 
+        if (smsCountryIso != null && !smsCountryIso.isEmpty()) {
+            synchronized (sCountryIsoCache) {
+                sCountryIsoCache.put(subId, smsCountryIso);
+            }
+        }
         return smsCountryIso;
     }
+
+    /** Called on the main thread, the listener needs a looper */
+    private static void _watchSubscriptions(Context ctx)
+    {
+        synchronized (sCountryIsoCache) {
+            if (sSubsChangedListener != null) {
+                return;
+            }
+            sSubsChangedListener = new SubscriptionManager.OnSubscriptionsChangedListener() {
+                @Override
+                public void onSubscriptionsChanged() {
+                    synchronized (sCountryIsoCache) {
+                        sCountryIsoCache.clear();
+                    }
+                }
+            };
+        }
+        ctx.getApplicationContext().getSystemService(SubscriptionManager.class)
+                .addOnSubscriptionsChangedListener(sSubsChangedListener);
+    }
 }
@@ -50,7 +50,8 @@ public class SmsResendFgService extends ABaseFgService<SmsResendFgService.SmsDat
         super(TITLE_PREFIX, STATUS_PREFIX, NOT_ID,
                 (Build.VERSION.SDK_INT < 34) ?
                     ServiceInfo.FOREGROUND_SERVICE_TYPE_NONE :
-                    ServiceInfo.FOREGROUND_SERVICE_TYPE_REMOTE_MESSAGING
+                    ServiceInfo.FOREGROUND_SERVICE_TYPE_REMOTE_MESSAGING,
+                SmsData.class
                 );
     }
 
@@ -84,6 +85,14 @@ public class SmsResendFgService extends ABaseFgService<SmsResendFgService.SmsDat
     {
         super.onStartCommand(intent, flags, startId);
 
+        replayOutbox(startId);
+        if (intent.getBooleanExtra(SmsLoc_Intents.EXTRA_REPLAY, false)) {
+            if (mQueue.isEmpty()) {
+                stopAfterEmptyReplay(startId);
+            }
+            return START_NOT_STICKY;
+        }
+
         // create new queue entry
         final QueueEntry<SmsData> qEntry = new QueueEntry<>(
                 startId,
@@ -113,6 +122,12 @@ public class SmsResendFgService extends ABaseFgService<SmsResendFgService.SmsDat
         return SmsUtils.sendSms(this, qEntry.addr(), qEntry.data().msg, qEntry.data().retryCnt);
     }
 
+    @Override
+    protected boolean isSameResponse(QueueEntry<SmsData> a, QueueEntry<SmsData> b) {
+        // different messages to the same person are all sent
+        return a.addr().equals(b.addr()) && a.data().msg.equals(b.data().msg);
+    }
+
     // SERVICE STATE MONITORING
     protected void _onServiceStateChanged(ServiceState serviceState) {
         Log.d("TEST", "Current State: " + serviceState.getState() + " (0=InService, 1=OutOfService, 3=PowerOff)");
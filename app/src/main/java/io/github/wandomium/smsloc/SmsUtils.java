@@ -30,24 +30,125 @@ import com.google.i18n.phonenumbers.Phonenumber;
 
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import io.github.wandomium.smsloc.data.file.LogFile;
+import io.github.wandomium.smsloc.data.unit.GpsSmsCodec;
 import io.github.wandomium.smsloc.defs.SmsLoc_Settings;
 
 public class SmsUtils
 {
     public static final String REQUEST_CODE = "Loc?";
     public static final String RESPONSE_CODE = "Loc:";
+    /** Response in GpsSmsCodec format, only sent to requesters that asked for it */
+    public static final String RESPONSE_CODE_COMPACT = "Loc=";
+    /** Asks for our recent fixes, always answered with RESPONSE_CODE_COMPACT */
+    public static final String REQUEST_TRAIL_CODE = "Loc#";
+    /** Starts a tracking session, batches of fixes are sent with RESPONSE_CODE_COMPACT */
+    public static final String REQUEST_TRACK_CODE = "Loc+";
+    /** Stops the tracking session of the sender */
+    public static final String REQUEST_TRACK_STOP_CODE = "Loc-";
     public static final int CODE_LEN = 4;
 
+    /** GSM 7-bit, single part */
+    public static final int SMS_MAX_LEN = 160;
+
+    public static final int TRAIL_DEFAULT_POINTS = 20;
+    public static final int TRAIL_MAX_POINTS = 100;
+
+    public static final int TRACK_MIN_INTERVAL_S = 30;
+    public static final int TRACK_DEFAULT_INTERVAL_S = 60;
+    public static final int TRACK_DEFAULT_DURATION_S = 30 * 60;
+    public static final int TRACK_MAX_DURATION_S = 12 * 60 * 60;
+    public static final int TRACK_DEFAULT_MAX_SMS = 10;
+    public static final int TRACK_MAX_SMS = 100;
+
+    /* Request parameters, a letter followed by a number. Old responders ignore
+       anything after REQUEST_CODE */
+    private static final char PARAM_COMPACT = 'z'; //GpsSmsCodec version the requester reads
+    private static final char PARAM_TRAIL_POINTS = 'n';
+    private static final char PARAM_TRAIL_SINCE = 's'; //utc in s
+    private static final char PARAM_TRACK_INTERVAL = 'i'; //s
+    private static final char PARAM_TRACK_DURATION = 'd'; //s
+    private static final char PARAM_TRACK_MAX_SMS = 'm';
+
+    public record TrailQuery(int maxPoints, long sinceUtc){}
+    public record TrackQuery(int intervalS, int durationS, int maxSms){}
+
+    public static String requestText() {
+        return REQUEST_CODE + PARAM_COMPACT + GpsSmsCodec.VERSION;
+    }
+
+    /** @param sinceUtc only fixes newer than this, 0 for the last maxPoints fixes */
+    public static String trailRequestText(final int maxPoints, final long sinceUtc) {
+        return REQUEST_TRAIL_CODE + PARAM_COMPACT + GpsSmsCodec.VERSION + PARAM_TRAIL_POINTS + maxPoints
+                + (sinceUtc > 0 ? PARAM_TRAIL_SINCE + Long.toString(sinceUtc / 1000) : "");
+    }
+
+    public static String trackRequestText(final int intervalS, final int durationS, final int maxSms) {
+        return REQUEST_TRACK_CODE + PARAM_COMPACT + GpsSmsCodec.VERSION
+                + PARAM_TRACK_INTERVAL + intervalS + PARAM_TRACK_DURATION + durationS + PARAM_TRACK_MAX_SMS + maxSms;
+    }
+
+    /** @return true if the request (text after REQUEST_CODE) accepts a RESPONSE_CODE_COMPACT response */
+    public static boolean acceptsCompactResponse(final String requestParams) {
+        // requester reads all versions up to the one it sends
+        return _getParam(requestParams, PARAM_COMPACT) >= GpsSmsCodec.VERSION;
+    }
+
+    /** @param requestParams text after REQUEST_TRAIL_CODE */
+    public static TrailQuery parseTrailRequest(final String requestParams) {
+        long maxPoints = _getParam(requestParams, PARAM_TRAIL_POINTS);
+        maxPoints = maxPoints <= 0 ? TRAIL_DEFAULT_POINTS : Math.min(maxPoints, TRAIL_MAX_POINTS);
+        final long since = _getParam(requestParams, PARAM_TRAIL_SINCE);
+
+        return new TrailQuery((int) maxPoints, since <= 0 ? 0 : since * 1000);
+    }
+
+    /** @param requestParams text after REQUEST_TRACK_CODE, values out of range are clamped */
+    public static TrackQuery parseTrackRequest(final String requestParams) {
+        return new TrackQuery(
+            (int) _clampParam(requestParams, PARAM_TRACK_INTERVAL,
+                    TRACK_DEFAULT_INTERVAL_S, TRACK_MIN_INTERVAL_S, TRACK_MAX_DURATION_S),
+            (int) _clampParam(requestParams, PARAM_TRACK_DURATION,
+                    TRACK_DEFAULT_DURATION_S, TRACK_MIN_INTERVAL_S, TRACK_MAX_DURATION_S),
+            (int) _clampParam(requestParams, PARAM_TRACK_MAX_SMS, TRACK_DEFAULT_MAX_SMS, 1, TRACK_MAX_SMS)
+        );
+    }
+
+    private static long _clampParam(final String params, final char key, long def, long min, long max) {
+        final long value = _getParam(params, key);
+        return value < 0 ? def : Math.max(min, Math.min(value, max));
+    }
+
+    /** @return value of the first param with this key or -1 */
+    private static long _getParam(final String params, final char key) {
+        if (params == null) {
+            return -1;
+        }
+        for (int i = 0; i < params.length() - 1; i++) {
+            if (params.charAt(i) != key || !Character.isDigit(params.charAt(i + 1))) {
+                continue;
+            }
+            long value = 0;
+            for (i++; i < params.length() && Character.isDigit(params.charAt(i)); i++) {
+                value = Math.min(value * 10 + (params.charAt(i) - '0'), Long.MAX_VALUE / 1000 / 10);
+            }
+            return value;
+        }
+        return -1;
+    }
+
     public static Boolean isResponseSms(final String smsText) {
         if (smsText == null) {
             return null;
         }
         switch (smsText.substring(0, SmsUtils.CODE_LEN)) {
-            case SmsUtils.REQUEST_CODE  -> { return false; }
-            case SmsUtils.RESPONSE_CODE -> { return true; }
+            case SmsUtils.REQUEST_CODE, SmsUtils.REQUEST_TRAIL_CODE,
+                 SmsUtils.REQUEST_TRACK_CODE, SmsUtils.REQUEST_TRACK_STOP_CODE -> { return false; }
+            case SmsUtils.RESPONSE_CODE, SmsUtils.RESPONSE_CODE_COMPACT -> { return true; }
             default -> { return null; } //not our sms. should not happen
         }
     }
@@ -93,6 +194,15 @@ public class SmsUtils
                 SmsSentStatusReceiver.getPendingIntent(context, addr, msg, retryCnt), null);
     }
 
+    /* Least recently used normalized numbers, keyed on raw number and region. Errors are not cached */
+    private static final int E164_CACHE_SIZE = 64;
+    private static final LinkedHashMap<String,String> E164_CACHE = new LinkedHashMap<>(E164_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+            return size() > E164_CACHE_SIZE;
+        }
+    };
+
     /**
      * WHEN ADDING NEW PERSON: Don't even try with SIM country ISO
      * if we pass null, then it will fail if the number does not have a
@@ -103,6 +213,24 @@ public class SmsUtils
      */
     public static String convertToE164PhoneNumFormat(String phoneNumStr, String defaultRegion)
             throws NumberParseException
+    {
+        // the same few people send us SMS over and over, libphonenumber only runs for new ones
+        final String key = phoneNumStr + '|' + defaultRegion;
+        synchronized (E164_CACHE) {
+            final String cached = E164_CACHE.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final String e164 = _convertToE164PhoneNumFormat(phoneNumStr, defaultRegion);
+        synchronized (E164_CACHE) {
+            E164_CACHE.put(key, e164);
+        }
+        return e164;
+    }
+
+    private static String _convertToE164PhoneNumFormat(String phoneNumStr, String defaultRegion)
+            throws NumberParseException
     {
         PhoneNumberUtil pNumberUtil = PhoneNumberUtil.getInstance();
         Phonenumber.PhoneNumber phoneNumber;
@@ -0,0 +1,224 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.core.location.LocationListenerCompat;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.github.wandomium.smsloc.data.file.LogFile;
+import io.github.wandomium.smsloc.data.file.MyTrackFile;
+import io.github.wandomium.smsloc.data.unit.GpsData;
+import io.github.wandomium.smsloc.data.unit.GpsSmsCodec;
+import io.github.wandomium.smsloc.defs.SmsLoc_Common;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
+import io.github.wandomium.smsloc.toolbox.Utils;
+
+/**
+ * Periodic location updates to one requester, see SmsUtils.REQUEST_TRACK_CODE
+ * <p>
+ * GPS updates are requested with the session interval, so the receiver can be
+ * duty cycled by the system instead of us starting a new fix every time.
+ * The SamplingPolicy decides which fixes are sent and adjusts the interval.
+ * Fixes are batched so the rest of the session fits into the messages that are left:
+ * every SMS carries the expected number of remaining fixes / remaining messages
+ * (as many as fit). The session stops after the duration, after maxSms messages or on stop() - what is
+ * still pending then is sent if there are messages left.
+ * <p>
+ * Runs on the main thread
+ */
+public class TrackingSession implements LocationListenerCompat
+{
+    private static final String CLASS_TAG = TrackingSession.class.getSimpleName();
+
+    // ~15 fixes with small deltas fit into one SMS, leave room for bigger ones
+    public static final int MAX_FIXES_PER_SMS = 10;
+
+    @FunctionalInterface
+    public interface OnFinished {
+        void onSessionFinished(TrackingSession session, String reason);
+    }
+
+    private Context mCtx;
+    private OnFinished mOnFinished;
+
+    private final String mAddr;
+    private final SmsUtils.TrackQuery mQuery;
+    private final SamplingPolicy mPolicy;
+    private final long mEndMs; //elapsedRealtime
+    private long mIntervalMs;
+
+    private final ArrayList<GpsData> mPending = new ArrayList<>(); //newest first
+    private final StringBuilder mSmsBuilder = new StringBuilder(SmsUtils.SMS_MAX_LEN);
+    private ScheduledFuture<?> mEndFuture;
+    private long mLastFixUtc = 0;
+    private GpsData mLastSent = null;
+    private int mNumSent = 0;
+    private int mNumFixes = 0;
+    private int mNumSkipped = 0;
+    private boolean mFinished = false;
+
+    public TrackingSession(@NonNull Context ctx, @NonNull String addr,
+                           @NonNull SmsUtils.TrackQuery query, @NonNull SamplingPolicy policy, @NonNull OnFinished cb)
+    {
+        mCtx = ctx;
+        mOnFinished = cb;
+        mAddr = addr;
+        mQuery = query;
+        mPolicy = policy;
+
+        mIntervalMs = query.intervalS() * 1000L;
+        mEndMs = SystemClock.elapsedRealtime() + query.durationS() * 1000L;
+    }
+
+    public String getAddr()  { return mAddr; }
+    public int getNumSent()  { return mNumSent; }
+    public int getNumFixes() { return mNumFixes; }
+    public int getNumSkipped() { return mNumSkipped; }
+
+    public String describe() {
+        return String.format(SmsLoc_Common.LOCALE, "every %d s for %d min, max %d SMS",
+                mQuery.intervalS(), mQuery.durationS() / 60, mQuery.maxSms());
+    }
+
+    /** @return false if location updates could not be requested, onFinished is not called then */
+    public boolean start()
+    {
+        if (!_requestUpdates(mIntervalMs)) {
+            mFinished = true;
+            return false;
+        }
+        // there might be no updates at the end (no fix) to notice we are done
+        final Executor mainExecutor = mCtx.getMainExecutor();
+        mEndFuture = AppExecutor.getInstance().schedule(
+                () -> mainExecutor.execute(() -> stop("finished")), mQuery.durationS(), TimeUnit.SECONDS);
+        return true;
+    }
+
+    @Override
+    public void onLocationChanged(@NonNull Location location)
+    {
+        if (mFinished) {
+            return;
+        }
+        if (SystemClock.elapsedRealtime() >= mEndMs) {
+            stop("finished");
+            return;
+        }
+
+        final GpsData fix = GpsData.fromLocationAndBat(location, Utils.getBatteryPct(mCtx));
+        // some devices deliver updates more often than requested
+        if (!fix.dataValid() || fix.utc - mLastFixUtc < mIntervalMs * 9 / 10) {
+            return;
+        }
+        mLastFixUtc = fix.utc;
+
+        final MyTrackFile MYTRACK = MyTrackFile.getInstance(mCtx);
+        MYTRACK.addLocation(fix);
+        MYTRACK.writeFileAsync();
+
+        final SamplingPolicy.Decision decision = mPolicy.onFix(fix, mLastSent, mQuery.intervalS() * 1000L);
+        if (decision.send()) {
+            mLastSent = fix;
+            mNumFixes++;
+            mPending.add(0, fix);
+            if (mPending.size() >= _fixesPerSms()) {
+                _sendPending();
+                if (mNumSent >= mQuery.maxSms()) {
+                    stop("max messages sent");
+                    return;
+                }
+            }
+        }
+        else {
+            mNumSkipped++;
+        }
+
+        // re-requesting restarts the provider, only do it for a real change
+        final long next = decision.nextIntervalMs();
+        if ((next > mIntervalMs * 5 / 4 || next < mIntervalMs * 4 / 5) && !_requestUpdates(next)) {
+            stop("location updates failed");
+        }
+    }
+
+    public void stop(final String reason)
+    {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        Log.d(CLASS_TAG, "stop: " + reason);
+
+        LocationHub.getInstance(mCtx).unsubscribe(this);
+        if (mEndFuture != null) {
+            mEndFuture.cancel(false);
+        }
+        if (!mPending.isEmpty() && mNumSent < mQuery.maxSms()) {
+            _sendPending();
+        }
+
+        mOnFinished.onSessionFinished(this, reason);
+
+        mEndFuture = null;
+        mOnFinished = null;
+        mCtx = null;
+    }
+
+    /** Replaces the previous request of this listener */
+    private boolean _requestUpdates(long intervalMs)
+    {
+        try {
+            LocationHub.getInstance(mCtx).subscribe(LocationManager.GPS_PROVIDER, this, intervalMs);
+        }
+        catch (SecurityException | IllegalArgumentException e) {
+            LogFile.getInstance(mCtx).addLogEntry("ERROR: Could not start tracking: " + e.getMessage());
+            return false;
+        }
+        mIntervalMs = intervalMs;
+        return true;
+    }
+
+    /** Spreads the fixes expected at the current interval over the messages that are left */
+    private int _fixesPerSms()
+    {
+        final long expected = mPending.size() + Math.max(0, mEndMs - SystemClock.elapsedRealtime()) / mIntervalMs;
+        final int smsLeft = Math.max(1, mQuery.maxSms() - mNumSent);
+        return (int) Math.max(1, Math.min(MAX_FIXES_PER_SMS, (expected + smsLeft - 1) / smsLeft));
+    }
+
+    private void _sendPending()
+    {
+        // newest first, the oldest are dropped if they do not fit
+        mSmsBuilder.setLength(0);
+        GpsSmsCodec.append(mSmsBuilder.append(SmsUtils.RESPONSE_CODE_COMPACT), mPending, SmsUtils.SMS_MAX_LEN);
+        mPending.clear();
+
+        // failed sends are retried by SmsResendFgService, count them anyway
+        SmsUtils.sendSms(mCtx, mAddr, mSmsBuilder.toString());
+        mNumSent++;
+    }
+}
@@ -17,15 +17,18 @@
 package io.github.wandomium.smsloc.data.base;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import io.github.wandomium.smsloc.defs.SmsLoc_Intents;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class BaseFile implements AutoCloseable
 {
@@ -34,7 +37,16 @@ public abstract class BaseFile implements AutoCloseable
     public enum StorageLocation {EXTERNAL, INTERNAL}
     public enum FileType {settings, data, log}
 
+    /* Write-behind defaults. Async writes requested within the debounce window are
+     * collapsed into one, but a write is never postponed for more than max latency */
+    public static final long WRITE_DEBOUNCE_MS_DEFAULT = 300;
+    public static final long WRITE_MAX_LATENCY_MS_DEFAULT = 2000;
+
     protected final Object LOCK;
+    /* Serializes disk writes of this file. Never taken while holding LOCK */
+    private final Object WRITE_LOCK = new Object();
+    /* Guards write-behind state */
+    private final Object SCHEDULE_LOCK = new Object();
 
     protected final Context mAppContext;
 
@@ -43,11 +55,33 @@ public abstract class BaseFile implements AutoCloseable
 
     protected final Path mFilePath;
     protected final String mFilename;
-    protected ExecutorService mExecutor;
+    /* Writes of this file run in order on the shared app executor */
+    protected final AppExecutor.SerialLane mIoLane;
+
+    private long mDebounceMs = WRITE_DEBOUNCE_MS_DEFAULT;
+    private long mMaxLatencyMs = WRITE_MAX_LATENCY_MS_DEFAULT;
+    private ScheduledFuture<?> mPendingWrite;
+    private long mPendingWriteGen = 0;
+    private long mFirstRequestMs = 0;
+
+    private final AtomicLong mWritesRequested = new AtomicLong();
+    private final AtomicLong mWritesExecuted = new AtomicLong();
+
+    @FunctionalInterface
+    protected interface WriteCmd {
+        void write() throws IOException;
+    }
 
-    protected abstract void _writeCmd() throws IOException;
+    /**
+     * Called with LOCK held. Should only take a cheap copy of the data,
+     * serialization and disk I/O are done in the returned command after LOCK is released
+     */
+    protected abstract WriteCmd _snapshotCmd();
     protected abstract void _loadCmd()  throws IOException;
 
+    /** Called with LOCK held when the command returned by _snapshotCmd failed */
+    protected void _onWriteFailed() {}
+
     /**
      * This should be called from deriving class - singleton - in a locked state
      */
@@ -55,6 +89,7 @@ public abstract class BaseFile implements AutoCloseable
     {
         LOCK = lock;
         mFilename = filename;
+        mIoLane = AppExecutor.getInstance().newLane();
         //Application context has to be used to avoid memory leaks.
         //prevent user mistakes of providing the wrong one.
         mAppContext = context.getApplicationContext();
@@ -79,7 +114,7 @@ public abstract class BaseFile implements AutoCloseable
 
         try {
             final boolean newDay = file.createNewFile();   //creates if it does not exist
-            // TODO: clean old files
+            // old day files are cleaned by LocationHistory
         }
         catch (IOException e) {
             //TODO-low
@@ -112,23 +147,87 @@ public abstract class BaseFile implements AutoCloseable
         }
     }
 
+    /**
+     * LOCK is only held while the snapshot is taken, so readers and writers of the data
+     * are never blocked behind disk I/O.
+     * Writes are ordered trough WRITE_LOCK: a caller that was waiting for an in-flight
+     * write takes its snapshot afterwards, and if that write already stored the latest
+     * data (mDiskUnsynced cleared) it returns without touching the disk.
+     */
     public void writeFileBlocking()
     {
-        synchronized (LOCK) {
-            if (!mDiskUnsynced) {
-                return;
+        synchronized (WRITE_LOCK) {
+            final WriteCmd cmd;
+            synchronized (LOCK) {
+                if (!mDiskUnsynced) {
+                    return;
+                }
+                cmd = _snapshotCmd();
+                mDiskUnsynced = false;
             }
+            mWritesExecuted.incrementAndGet();
+
             try {
-                _writeCmd();
-                mDiskUnsynced = false;
+                cmd.write();
             } catch (IOException e) {
+                synchronized (LOCK) {
+                    _onWriteFailed();
+                }
                 _handleIOException("write", e);
             }
         }
     }
 
+    /**
+     * Schedule a write-behind. Requests that come in while a write is pending are
+     * collapsed into it: each one moves the write debounce ms into the future, but not
+     * later than max latency after the first request of the batch.
+     */
     public void writeFileAsync() {
-        _getExecutor().execute(this::writeFileBlocking);
+        mWritesRequested.incrementAndGet();
+
+        synchronized (SCHEDULE_LOCK) {
+            final long now = SystemClock.elapsedRealtime();
+            if (mPendingWrite == null || !mPendingWrite.cancel(false)) {
+                // nothing pending or it is already running, start a new batch
+                mFirstRequestMs = now;
+            }
+            final long delayMs = Math.max(0, Math.min(mDebounceMs, mFirstRequestMs + mMaxLatencyMs - now));
+            final long gen = ++mPendingWriteGen;
+            mPendingWrite = mIoLane.schedule(
+                    () -> _runPendingWrite(gen), delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Write everything pending right now, on the calling thread */
+    public void flush() {
+        synchronized (SCHEDULE_LOCK) {
+            if (mPendingWrite != null) {
+                mPendingWrite.cancel(false);
+                mPendingWrite = null;
+            }
+        }
+        writeFileBlocking();
+    }
+
+    /** @param debounceMs 0 writes on every request (no coalescing) */
+    public void setWriteBehind(long debounceMs, long maxLatencyMs) {
+        synchronized (SCHEDULE_LOCK) {
+            mDebounceMs = Math.max(0, debounceMs);
+            mMaxLatencyMs = Math.max(mDebounceMs, maxLatencyMs);
+        }
+    }
+
+    public long getWritesRequested() { return mWritesRequested.get(); }
+    public long getWritesExecuted()  { return mWritesExecuted.get(); }
+
+    private void _runPendingWrite(final long gen) {
+        synchronized (SCHEDULE_LOCK) {
+            if (gen == mPendingWriteGen) {
+                mPendingWrite = null;
+            }
+        }
+        writeFileBlocking();
     }
 
     private void _handleIOException(final String operation, final IOException e)
@@ -141,21 +240,22 @@ public abstract class BaseFile implements AutoCloseable
         mAppContext.sendBroadcast(SmsLoc_Intents.generateErrorIntent(mAppContext, errStr));
 
         //try to fix/sync this
-        mDiskUnsynced = true;
-    }
-
-    protected ExecutorService _getExecutor() {
-        if (mExecutor == null) {
-            mExecutor = Executors.newSingleThreadExecutor();
+        synchronized (LOCK) {
+            mDiskUnsynced = true;
         }
-        return mExecutor;
     }
 
+    /** Pending write-behind is dropped, call flush before this.
+     * There are no threads to stop, shared executor threads time out on their own */
     @Override
     public void close() {
-        if (mExecutor != null) {
-            mExecutor.shutdownNow();
+        synchronized (SCHEDULE_LOCK) {
+            if (mPendingWrite != null) {
+                mPendingWrite.cancel(false);
+            }
+            mPendingWrite = null;
         }
-        mExecutor = null;
+        Log.d(CLASS_TAG, String.format("File closed: %s, writes requested/executed: %d/%d",
+                mFilename, mWritesRequested.get(), mWritesExecuted.get()));
     }
 }
\ No newline at end of file
@@ -21,74 +21,176 @@ import android.util.Log;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.IOException;
+import java.lang.reflect.GenericArrayType;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
 
 //TODO support export
 
 /**
  * Used to storing data to files, where keys are always address in string
  * address == phone number
- *
+ * <p>
+ * Journaled mode (journalOpType != null): mutations done trough applyOp are appended
+ * to a journal file next to the snapshot, one json record per line. The snapshot is
+ * only rewritten when JOURNAL_COMPACT_THRESHOLD records are reached or when data was
+ * changed outside of applyOp (we cannot know what changed, so we have to rewrite).
+ * Journal is replayed on top of the snapshot on load.
+ * <p>
+ * Ops are not idempotent (counters), a journal must never be replayed on a snapshot that
+ * already contains it. Compaction moves the journal to JOURNAL_OLD_SUFFIX before the new
+ * snapshot is published, a left over tmp snapshot tells if the publish happened (see _writeSnapshot).
  */
 public class DataUnitFile<T extends DataUnit<T>> extends BaseFile
 {
-    private final Type FILE_DATA_FORMAT;
+    public static final int JOURNAL_COMPACT_THRESHOLD = 64;
+    public static final String JOURNAL_SUFFIX = ".journal";
+    public static final String JOURNAL_OLD_SUFFIX = JOURNAL_SUFFIX + ".old";
+    private static final String SNAPSHOT_TMP_SUFFIX = ".tmp";
+
+    private final Type ELEMENT_FORMAT;
+    private final Type JOURNAL_OP_FORMAT;
     protected final DataUnitFactory<T> mUnitFactory;
 
     protected HashMap<String,T> mData;
 
+    /* journal state, null/unused when not journaled */
+    private final Path mJournalPath;
+    private final Path mJournalOldPath;
+    private final Path mSnapshotTmpPath;
+    private ArrayList<DataUnitOp<T>> mPendingOps;
+    private int mJournalRecords = 0;
+    private boolean mSnapshotRequired = false;
+
     /** This should be called from deriving class - singleton - in a locked state
      */
     protected DataUnitFile(FileType fileType, String filename,
                            Context context, final Object lock, Type gsonTypeToken, DataUnitFactory<T> factory)
+    {
+        this(fileType, filename, context, lock, gsonTypeToken, null, factory);
+    }
+
+    /** This should be called from deriving class - singleton - in a locked state
+     * @param journalOpType gson type of the DataUnitOp implementation, null disables the journal
+     */
+    protected DataUnitFile(FileType fileType, String filename,
+                           Context context, final Object lock, Type gsonTypeToken, Type journalOpType,
+                           DataUnitFactory<T> factory)
     {
         super(fileType, filename, context, lock);
 
-        FILE_DATA_FORMAT = gsonTypeToken;
+        ELEMENT_FORMAT = _arrayComponentType(gsonTypeToken);
+        JOURNAL_OP_FORMAT = journalOpType;
         mUnitFactory = factory;
 
+        if (JOURNAL_OP_FORMAT != null) {
+            mJournalPath = mFilePath.resolveSibling(mFilename + JOURNAL_SUFFIX);
+            mJournalOldPath = mFilePath.resolveSibling(mFilename + JOURNAL_OLD_SUFFIX);
+            mSnapshotTmpPath = mFilePath.resolveSibling(mFilename + SNAPSHOT_TMP_SUFFIX);
+            mPendingOps = new ArrayList<>();
+        }
+        else {
+            mJournalPath = null;
+            mJournalOldPath = null;
+            mSnapshotTmpPath = null;
+        }
+
         loadFile();
     }
 
+    public final boolean isJournaled()
+    {
+        return JOURNAL_OP_FORMAT != null;
+    }
+
     @Override
     protected void _loadCmd() throws IOException
     {
         mData = new HashMap<>();
 
-        Gson gson = new Gson();
-        T[] data;
+        if (isJournaled()) {
+            _recoverCompaction();
+        }
 
+        IOException snapshotErr = null;
         try {
-            final String text = new String(Files.readAllBytes(mFilePath));
-            data = gson.fromJson(text, FILE_DATA_FORMAT);
-            if (data == null) {
-                //null data just means no elements, since the exception is caught
-                return;
-            }
+            _loadSnapshot();
+        }
+        catch (IOException e) {
+            // keep what we have and still replay the journal on top of it
+            snapshotErr = e;
         }
-        catch (JsonParseException e) {
-            //mData is already cleared
-            throw new IOException(e.getMessage());
+
+        if (isJournaled()) {
+            mPendingOps.clear();
+            mSnapshotRequired = snapshotErr != null;
+            _replayJournal();
         }
 
-        StringBuilder errMsg = new StringBuilder();
-        for (T el : data) {
-            if (el.getId() != null && el.validate()) {
-                mData.put(el.getId(), el);
-            } else {
-                //we don't throw yet, because we want to keep the elements that are ok
-                //they will be rewritten on next call to writeFile
-                //in reality, this is already the _loadFile function calling this one,
-                //since it tries to recover from issues
-                errMsg.append(String.format("Corrupted data element: %s\n", gson.toJson(el)));
-                Log.e(CLASS_TAG, errMsg.toString());
+        if (snapshotErr != null) {
+            throw snapshotErr;
+        }
+    }
+
+    /**
+     * Elements are decoded one by one directly into mData, we never hold the whole
+     * file text or a temporary array in memory.
+     * On a broken element we keep everything loaded up to that point, the rest is lost
+     * and the file is rewritten on next write.
+     */
+    private void _loadSnapshot() throws IOException
+    {
+        if (Files.size(mFilePath) == 0) {
+            //new file, no elements
+            return;
+        }
+
+        final Gson gson = new Gson();
+        final StringBuilder errMsg = new StringBuilder();
+
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(mFilePath, StandardCharsets.UTF_8))) {
+            if (reader.peek() == JsonToken.NULL) {
+                //null data just means no elements
+                return;
+            }
+
+            reader.beginArray();
+            while (reader.hasNext()) {
+                final T el = gson.fromJson(reader, ELEMENT_FORMAT);
+                if (el != null && el.getId() != null && el.validate()) {
+                    mData.put(el.getId(), el);
+                } else {
+                    //we don't throw yet, because we want to keep the elements that are ok
+                    //they will be rewritten on next call to writeFile
+                    //in reality, this is already the _loadFile function calling this one,
+                    //since it tries to recover from issues
+                    errMsg.append(String.format("Corrupted data element: %s\n", gson.toJson(el)));
+                    Log.e(CLASS_TAG, errMsg.toString());
+                }
             }
+            reader.endArray();
+        }
+        catch (EOFException | JsonParseException | IllegalStateException e) {
+            //mData holds the elements read before the error
+            throw new IOException(e.getMessage() + (errMsg.length() == 0 ? "" : "\n" + errMsg));
         }
+
         //we are still supporting API29, there is no need for this
         //noinspection SizeReplaceableByIsEmpty
         if (errMsg.length() == 0) {
@@ -98,11 +200,171 @@ public class DataUnitFile<T extends DataUnit<T>> extends BaseFile
         throw new IOException(errMsg.toString());
     }
 
+    private static Type _arrayComponentType(Type arrayType)
+    {
+        if (arrayType instanceof GenericArrayType) {
+            return ((GenericArrayType) arrayType).getGenericComponentType();
+        }
+        if (arrayType instanceof Class<?> && ((Class<?>) arrayType).isArray()) {
+            return ((Class<?>) arrayType).getComponentType();
+        }
+        throw new IllegalArgumentException("File data format has to be an array type: " + arrayType);
+    }
+
+    /** Finish or roll back a compaction that was interrupted, before anything is read.
+     * Every step is a single rename or delete, so getting killed in here is fine as well.
+     */
+    private void _recoverCompaction() throws IOException
+    {
+        if (Files.exists(mJournalOldPath)) {
+            if (Files.exists(mSnapshotTmpPath)) {
+                // new snapshot was not published, old journal is still needed. Nothing
+                // appends to the journal before the compaction finishes, it cannot exist
+                Log.e(CLASS_TAG, mFilename + ": compaction interrupted, restoring journal");
+                Files.move(mJournalOldPath, mJournalPath, StandardCopyOption.ATOMIC_MOVE);
+            }
+            else {
+                // new snapshot was published and it contains the old journal
+                Log.e(CLASS_TAG, mFilename + ": compaction interrupted, dropping compacted journal");
+                Files.delete(mJournalOldPath);
+            }
+        }
+        Files.deleteIfExists(mSnapshotTmpPath);
+    }
+
+    /** Apply journal records on top of the loaded snapshot. A torn last line
+     * (killed while appending) or a corrupted record is skipped and the snapshot
+     * is rewritten on next write so the bad records disappear from disk.
+     */
+    private void _replayJournal() throws IOException
+    {
+        if (!Files.exists(mJournalPath)) {
+            mJournalRecords = 0;
+            return;
+        }
+
+        final Gson gson = new Gson();
+        int numRecords = 0;
+        int numCorrupted = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(mJournalPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                numRecords++;
+                try {
+                    final DataUnitOp<T> op = gson.fromJson(line, JOURNAL_OP_FORMAT);
+                    if (op == null || op.getId() == null) {
+                        numCorrupted++;
+                        continue;
+                    }
+                    op.applyTo(_referenceOrCreate(op.getId()));
+                }
+                catch (JsonParseException e) {
+                    numCorrupted++;
+                }
+            }
+        }
+        mJournalRecords = numRecords;
+
+        if (numCorrupted != 0) {
+            mSnapshotRequired = true;
+            mDiskUnsynced = true;
+            final String errMsg = String.format("Corrupted journal records: %d/%d", numCorrupted, numRecords);
+            Log.e(CLASS_TAG, errMsg);
+            throw new IOException(errMsg);
+        }
+    }
+
+    @Override
+    protected WriteCmd _snapshotCmd()
+    {
+        if (isJournaled() && !mSnapshotRequired
+                && mJournalRecords + mPendingOps.size() <= JOURNAL_COMPACT_THRESHOLD) {
+            // ops are immutable, we only hand over the list
+            final ArrayList<DataUnitOp<T>> ops = mPendingOps;
+            mPendingOps = new ArrayList<>();
+            mJournalRecords += ops.size();
+            return () -> _appendJournal(ops);
+        }
+
+        final ArrayList<T> units = new ArrayList<>(mData.size());
+        for (T unit : mData.values()) {
+            units.add(unit.getUnitCopy());
+        }
+        if (isJournaled()) {
+            // everything pending is part of the snapshot
+            mPendingOps.clear();
+            mJournalRecords = 0;
+            mSnapshotRequired = false;
+        }
+        return () -> _writeSnapshot(units);
+    }
+
     @Override
-    protected void _writeCmd() throws IOException
+    protected void _onWriteFailed()
     {
-        //(new Gson()).toJson(mData, new FileWriter(mFilename));
-        Files.write(mFilePath, Collections.singleton((new Gson()).toJson(mData.values())));
+        // ops handed to the failed command are gone, full rewrite restores them from mData
+        mSnapshotRequired = true;
+    }
+
+    private void _appendJournal(ArrayList<DataUnitOp<T>> ops) throws IOException
+    {
+        if (ops.isEmpty()) {
+            return;
+        }
+        final Gson gson = new Gson();
+        try (BufferedWriter writer = Files.newBufferedWriter(mJournalPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE)) {
+            for (DataUnitOp<T> op : ops) {
+                writer.write(gson.toJson(op, JOURNAL_OP_FORMAT));
+                writer.newLine();
+            }
+        }
+    }
+
+    private void _writeSnapshot(ArrayList<T> units) throws IOException
+    {
+        final String json = (new Gson()).toJson(units);
+        if (!isJournaled()) {
+            //(new Gson()).toJson(mData, new FileWriter(mFilename));
+            Files.write(mFilePath, Collections.singleton(json));
+            return;
+        }
+
+        // Compaction. The journal is moved away before the snapshot is replaced atomically,
+        // so it is never replayed on a snapshot that already contains it (ops are not
+        // idempotent, SmsLocData counters would be counted twice). If we get killed:
+        //  - before the journal move: tmp is deleted on load, journal replays on the old snapshot
+        //  - before the snapshot move: tmp and old journal exist, old journal is restored on load
+        //  - before the delete: only old journal exists, it is already in the snapshot and dropped
+        Files.write(mSnapshotTmpPath, Collections.singleton(json));
+        if (Files.exists(mJournalPath)) {
+            Files.move(mJournalPath, mJournalOldPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(mSnapshotTmpPath, mFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(mJournalOldPath);
+    }
+
+    /**
+     * Apply a mutation and, in journaled mode, queue it for appending to the journal
+     * instead of forcing a full rewrite of the file.
+     */
+    public void applyOp(DataUnitOp<T> op)
+    {
+        synchronized (LOCK)
+        {
+            op.applyTo(_referenceOrCreate(op.getId()));
+            if (isJournaled()) {
+                mPendingOps.add(op);
+            }
+            else {
+                mSnapshotRequired = true;
+            }
+            mDiskUnsynced = true;
+        }
     }
 
     public boolean containsId(String addr)
@@ -118,6 +380,7 @@ public class DataUnitFile<T extends DataUnit<T>> extends BaseFile
         synchronized (LOCK)
         {
             mData.remove(addr);
+            mSnapshotRequired = true;
             mDiskUnsynced = true;
         }
     }
@@ -127,6 +390,7 @@ public class DataUnitFile<T extends DataUnit<T>> extends BaseFile
         synchronized (LOCK)
         {
             mData.put(id, dataItem.getUnitCopy());
+            mSnapshotRequired = true;
             mDiskUnsynced = true;
         }
     }
@@ -166,14 +430,156 @@ public class DataUnitFile<T extends DataUnit<T>> extends BaseFile
      * They directly access the data elements, references should not be stored
      */
     public T referenceOrCreateObject_unlocked(String id)
+    {
+        //we have to assume this
+        mSnapshotRequired = true;
+        mDiskUnsynced = true;
+        return _referenceOrCreate(id);
+    }
+
+    private T _referenceOrCreate(String id)
     {
         if (!mData.containsKey(id)) {
             mData.put(id, mUnitFactory.createUnit(id));
         }
-
-        mDiskUnsynced = true; //we have to assume this
         return mData.get(id);
     }
+
+    /*
+     * Read only access to files that are not open as a DataUnitFile (previous days for ex.).
+     * Same format as above, snapshot plus an optional journal next to it. Nothing is repaired
+     * or written back, broken elements and records are skipped. An interrupted compaction
+     * is read the way _recoverCompaction would leave it.
+     */
+
+    /**
+     * @param snapshotOrdinals if not null, filled with the position of each unit in the snapshot
+     *                         array (for readUnit). Units only in the journal are not in it.
+     * @return all units in snapshot order, units created only by the journal come last
+     */
+    public static <T extends DataUnit<T>> LinkedHashMap<String,T> readUnits(
+            Path snapshotPath, Type elementType, Type journalOpType, DataUnitFactory<T> factory,
+            HashMap<String,Integer> snapshotOrdinals) throws IOException
+    {
+        final LinkedHashMap<String,T> units = new LinkedHashMap<>();
+        final Gson gson = new Gson();
+
+        if (Files.exists(snapshotPath) && Files.size(snapshotPath) != 0) {
+            try (JsonReader reader = new JsonReader(Files.newBufferedReader(snapshotPath, StandardCharsets.UTF_8))) {
+                if (reader.peek() != JsonToken.NULL) {
+                    reader.beginArray();
+                    for (int ordinal = 0; reader.hasNext(); ordinal++) {
+                        final T el = gson.fromJson(reader, elementType);
+                        if (el != null && el.getId() != null && el.validate()) {
+                            units.put(el.getId(), el);
+                            if (snapshotOrdinals != null) {
+                                snapshotOrdinals.put(el.getId(), ordinal);
+                            }
+                        }
+                    }
+                }
+            }
+            catch (EOFException | JsonParseException | IllegalStateException e) {
+                Log.e(CLASS_TAG, String.format("Snapshot %s read partially: %s", snapshotPath.getFileName(), e.getMessage()));
+            }
+        }
+
+        _forEachJournalOp(snapshotPath, journalOpType, null, (DataUnitOp<T> op) -> {
+            if (!units.containsKey(op.getId())) {
+                units.put(op.getId(), factory.createUnit(op.getId()));
+            }
+            op.applyTo(units.get(op.getId()));
+        });
+        return units;
+    }
+
+    /**
+     * Reads a single unit without decoding the others.
+     * @param ordinal position of the unit in the snapshot array as returned by readUnits,
+     *                -1 if it only exists in the journal
+     * @return null if the unit does not exist
+     */
+    public static <T extends DataUnit<T>> T readUnit(Path snapshotPath, Type elementType, Type journalOpType,
+                                                     DataUnitFactory<T> factory, String id, int ordinal) throws IOException
+    {
+        T unit = null;
+        final Gson gson = new Gson();
+
+        if (ordinal >= 0 && Files.exists(snapshotPath) && Files.size(snapshotPath) != 0) {
+            try (JsonReader reader = new JsonReader(Files.newBufferedReader(snapshotPath, StandardCharsets.UTF_8))) {
+                if (reader.peek() != JsonToken.NULL) {
+                    reader.beginArray();
+                    for (int i = 0; i < ordinal && reader.hasNext(); i++) {
+                        reader.skipValue();
+                    }
+                    if (reader.hasNext()) {
+                        final T el = gson.fromJson(reader, elementType);
+                        if (el != null && id.equals(el.getId()) && el.validate()) {
+                            unit = el;
+                        }
+                    }
+                }
+            }
+            catch (EOFException | JsonParseException | IllegalStateException e) {
+                Log.e(CLASS_TAG, String.format("Snapshot %s read failed: %s", snapshotPath.getFileName(), e.getMessage()));
+            }
+            if (unit == null) {
+                //file changed under the caller, fall back to a full read
+                return readUnits(snapshotPath, elementType, journalOpType, factory, null).get(id);
+            }
+        }
+
+        final ArrayList<DataUnitOp<T>> ops = new ArrayList<>();
+        DataUnitFile.<T>_forEachJournalOp(snapshotPath, journalOpType, id, ops::add);
+        if (unit == null && !ops.isEmpty()) {
+            unit = factory.createUnit(id);
+        }
+        for (DataUnitOp<T> op : ops) {
+            op.applyTo(unit);
+        }
+        return unit;
+    }
+
+    private static <T extends DataUnit<T>> void _forEachJournalOp(
+            Path snapshotPath, Type journalOpType, String onlyId, Consumer<DataUnitOp<T>> consumer) throws IOException
+    {
+        if (journalOpType == null) {
+            return;
+        }
+        final Path oldPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + JOURNAL_OLD_SUFFIX);
+        final Path tmpPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + SNAPSHOT_TMP_SUFFIX);
+        if (Files.exists(oldPath) && Files.exists(tmpPath)) {
+            // snapshot was not replaced, the moved journal is not in it
+            _readJournal(oldPath, journalOpType, onlyId, consumer);
+        }
+        _readJournal(snapshotPath.resolveSibling(snapshotPath.getFileName() + JOURNAL_SUFFIX),
+                journalOpType, onlyId, consumer);
+    }
+
+    private static <T extends DataUnit<T>> void _readJournal(
+            Path journalPath, Type journalOpType, String onlyId, Consumer<DataUnitOp<T>> consumer) throws IOException
+    {
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+
+        final Gson gson = new Gson();
+        try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    final DataUnitOp<T> op = gson.fromJson(line, journalOpType);
+                    if (op != null && op.getId() != null && (onlyId == null || onlyId.equals(op.getId()))) {
+                        consumer.accept(op);
+                    }
+                }
+                catch (JsonParseException ignored) {}
+            }
+        }
+    }
 }
 
 
@@ -0,0 +1,27 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.data.base;
+
+/**
+ * Single mutation of a data unit that can be appended to a file journal
+ * and replayed on load. Must carry everything it needs (timestamps included)
+ * so replay gives the same result as the original call.
+ */
+public interface DataUnitOp<T> {
+    String getId();
+    void applyTo(T unit);
+}
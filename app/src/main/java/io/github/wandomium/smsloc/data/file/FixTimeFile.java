@@ -0,0 +1,177 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.data.file;
+
+import android.content.Context;
+
+import io.github.wandomium.smsloc.data.base.BaseFile;
+import io.github.wandomium.smsloc.defs.SmsLoc_Common;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * How long the last fixes took, per provider. Used to derive the GPS timeout from what
+ * actually happens on this device, instead of always waiting the full configured time.
+ * <p>
+ * The timeout is p95 of the recent fix times with some margin, never more than the
+ * configured value. A request that ran out of time before the configured value tells us
+ * the timeout was too short and counts as taking the full configured time, so the timeout
+ * grows back. One that ran out at the configured value tells us nothing and is skipped.
+ */
+public class FixTimeFile extends BaseFile
+{
+    private static FixTimeFile mInstance = null;
+    private static final Object GET_INSTANCE_LOCK = new Object();
+
+    public static final int MAX_SAMPLES = 40;
+    /* Below this the configured timeout is used */
+    public static final int MIN_SAMPLES = 5;
+    public static final long MIN_TIMEOUT_MS = 30 * 1000;
+    private static final double PERCENTILE = 0.95;
+    private static final double MARGIN = 1.5;
+
+    /* file format */
+    private static final class Sample
+    {
+        long fixMs;       //-1 if there was no fix
+        long deadlineMs;  //the timeout this request had
+
+        Sample(long fixMs, long deadlineMs) {
+            this.fixMs = fixMs;
+            this.deadlineMs = deadlineMs;
+        }
+    }
+
+    private HashMap<String, ArrayList<Sample>> mSamples; //oldest first
+
+    private FixTimeFile(Context context)
+    {
+        super(FileType.data, SmsLoc_Common.Consts.FIX_TIME_FILENAME, context, GET_INSTANCE_LOCK);
+
+        loadFile();
+    }
+
+    public static FixTimeFile getInstance(Context context)
+    {
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            if (mInstance == null) {
+                mInstance = new FixTimeFile(context);
+            }
+            return mInstance;
+        }
+    }
+
+    public static void flushIfLoaded()
+    {
+        final FixTimeFile instance;
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            instance = mInstance;
+        }
+        if (instance != null) {
+            instance.flush();
+        }
+    }
+
+    @Override
+    protected void _loadCmd() throws IOException
+    {
+        mSamples = new HashMap<>();
+
+        if (Files.size(mFilePath) == 0) {
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(mFilePath, StandardCharsets.UTF_8)) {
+            final HashMap<String, ArrayList<Sample>> samples =
+                    (new Gson()).fromJson(reader, new TypeToken<HashMap<String, ArrayList<Sample>>>(){}.getType());
+            if (samples != null) {
+                mSamples = samples;
+            }
+        }
+        catch (JsonParseException e) {
+            //only statistics, start over
+            throw new IOException("Corrupted fix times: " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected WriteCmd _snapshotCmd()
+    {
+        // samples are never modified once added, only the lists are
+        final HashMap<String, ArrayList<Sample>> samples = new HashMap<>();
+        mSamples.forEach((provider, list) -> samples.put(provider, new ArrayList<>(list)));
+        return () -> Files.write(mFilePath, Collections.singleton((new Gson()).toJson(samples)));
+    }
+
+    /**
+     * Call writeFileAsync to store
+     * @param fixMs time it took to get the fix, -1 if there was none before the deadline
+     */
+    public void addSample(String provider, long fixMs, long deadlineMs)
+    {
+        synchronized (LOCK)
+        {
+            final ArrayList<Sample> samples = mSamples.computeIfAbsent(provider, p -> new ArrayList<>(MAX_SAMPLES + 1));
+            samples.add(new Sample(fixMs, deadlineMs));
+            if (samples.size() > MAX_SAMPLES) {
+                samples.remove(0);
+            }
+            mDiskUnsynced = true;
+        }
+    }
+
+    /** @param maxMs configured timeout, returned until there is enough history */
+    public long getTimeoutMs(String provider, long maxMs)
+    {
+        final long[] times;
+        int n = 0;
+        synchronized (LOCK)
+        {
+            final ArrayList<Sample> samples = mSamples.get(provider);
+            if (samples == null || samples.size() < MIN_SAMPLES) {
+                return maxMs;
+            }
+            times = new long[samples.size()];
+            for (Sample s : samples) {
+                if (s.fixMs >= 0) {
+                    times[n++] = s.fixMs;
+                }
+                else if (s.deadlineMs < maxMs) {
+                    times[n++] = maxMs;
+                }
+            }
+        }
+        if (n < MIN_SAMPLES) {
+            return maxMs;
+        }
+        Arrays.sort(times, 0, n);
+        final long p95 = times[Math.min(n - 1, (int) Math.ceil(PERCENTILE * n) - 1)];
+        return Math.max(Math.min(MIN_TIMEOUT_MS, maxMs), Math.min(maxMs, (long) (p95 * MARGIN)));
+    }
+}
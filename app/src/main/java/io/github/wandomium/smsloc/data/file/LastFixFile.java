@@ -0,0 +1,151 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.data.file;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import io.github.wandomium.smsloc.data.base.BaseFile;
+import io.github.wandomium.smsloc.data.unit.GpsData;
+import io.github.wandomium.smsloc.defs.SmsLoc_Common;
+import io.github.wandomium.smsloc.defs.SmsLoc_Settings;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Last good fix of this device, from any source: our own GPS requests, the map's
+ * my location overlay and passive provider updates (fixes other apps asked for).
+ * <p>
+ * A request is answered with it right away, without waking GPS, if it passes the
+ * freshness/accuracy Policy.
+ */
+public class LastFixFile extends BaseFile
+{
+    private static LastFixFile mInstance = null;
+    private static final Object GET_INSTANCE_LOCK = new Object();
+
+    /* A less accurate fix only replaces the cached one once that one is this old.
+     * Keeps a network fix from pushing out a GPS fix taken a few seconds before */
+    public static final long REPLACE_LESS_ACCURATE_MS = 60 * 1000;
+
+    /* The map feeds a fix every second while it is open, no need to store each one */
+    private static final long WRITE_DEBOUNCE_MS = 5 * 1000;
+    private static final long WRITE_MAX_LATENCY_MS = 30 * 1000;
+
+    /** @param maxAgeMs 0 disables the cache */
+    public record Policy(long maxAgeMs, int maxAccM)
+    {
+        public static Policy fromSettings(Context ctx) {
+            return new Policy(SmsLoc_Settings.FRESH_FIX_MAX_AGE_S.getInt(ctx) * 1000L,
+                    SmsLoc_Settings.FRESH_FIX_MAX_ACC_M.getInt(ctx));
+        }
+
+        public boolean accepts(GpsData fix, long now) {
+            return maxAgeMs > 0 && fix != null && fix.dataValid()
+                    && fix.acc_m <= maxAccM && now - fix.utc <= maxAgeMs && fix.utc <= now;
+        }
+    }
+
+    private GpsData mFix;
+
+    private LastFixFile(Context context)
+    {
+        super(FileType.data, SmsLoc_Common.Consts.LAST_FIX_FILENAME, context, GET_INSTANCE_LOCK);
+        setWriteBehind(WRITE_DEBOUNCE_MS, WRITE_MAX_LATENCY_MS);
+
+        loadFile();
+    }
+
+    public static LastFixFile getInstance(Context context)
+    {
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            if (mInstance == null) {
+                mInstance = new LastFixFile(context);
+            }
+            return mInstance;
+        }
+    }
+
+    public static void flushIfLoaded()
+    {
+        final LastFixFile instance;
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            instance = mInstance;
+        }
+        if (instance != null) {
+            instance.flush();
+        }
+    }
+
+    @Override
+    protected void _loadCmd() throws IOException
+    {
+        mFix = null;
+
+        final String json = new String(Files.readAllBytes(mFilePath), StandardCharsets.UTF_8);
+        if (json.isBlank()) {
+            return;
+        }
+        final GpsData fix = GpsData.fromJson(json);
+        mFix = fix != null && fix.dataValid() ? fix : null;
+    }
+
+    @Override
+    protected WriteCmd _snapshotCmd()
+    {
+        // GpsData is immutable
+        final GpsData fix = mFix;
+        return () -> Files.write(mFilePath,
+                (fix == null ? "" : fix.toJson()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Invalid and older fixes are ignored. Call writeFileAsync to store
+     * @return true if the fix replaced the cached one
+     */
+    public boolean offer(GpsData fix)
+    {
+        if (fix == null || !fix.dataValid()) {
+            return false;
+        }
+        synchronized (LOCK)
+        {
+            if (mFix != null && (fix.utc <= mFix.utc
+                    || (fix.acc_m > mFix.acc_m && fix.utc - mFix.utc < REPLACE_LESS_ACCURATE_MS))) {
+                return false;
+            }
+            mFix = fix;
+            mDiskUnsynced = true;
+            return true;
+        }
+    }
+
+    /** @return the cached fix if the policy accepts it, null otherwise */
+    @Nullable
+    public GpsData getFresh(Policy policy)
+    {
+        synchronized (LOCK)
+        {
+            return policy.accepts(mFix, System.currentTimeMillis()) ? mFix : null;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.data.file;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import io.github.wandomium.smsloc.data.base.BaseFile;
+import io.github.wandomium.smsloc.data.base.DataUnitFile;
+import io.github.wandomium.smsloc.data.unit.GpsData;
+import io.github.wandomium.smsloc.data.unit.GpsTrack;
+import io.github.wandomium.smsloc.data.unit.SmsLocData;
+import io.github.wandomium.smsloc.defs.SmsLoc_Common;
+import io.github.wandomium.smsloc.defs.SmsLoc_Settings;
+import io.github.wandomium.smsloc.toolbox.Utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Location history over the day data files of previous days.
+ * <p>
+ * For every day and address the index keeps the position of the unit in the day file
+ * and the time span of its locations, so a time range query only decodes the units it
+ * needs. The day that is open in SmsDayDataFile is never indexed, it is read from memory.
+ * Days older than HISTORY_RETENTION_DAYS are deleted on refresh.
+ */
+public class LocationHistory extends BaseFile
+{
+    private static LocationHistory mInstance = null;
+    private static final Object GET_INSTANCE_LOCK = new Object();
+
+    private static final Pattern DAY_FILE_PATTERN =
+            Pattern.compile(Pattern.quote(SmsLoc_Common.Consts.DAY_DATA_FILENAME) + "-(\\d{4}-\\d{2}-\\d{2})");
+
+    /* index file format */
+    private static final class DaySpan
+    {
+        String date;
+        long snapshotSize, snapshotModified, journalSize; //to detect changed files
+        HashMap<String,AddrSpan> addrs = new HashMap<>();
+    }
+    private static final class AddrSpan
+    {
+        int ordinal; //position in the day file, -1 if only in the journal
+        int numPoints;
+        long minUtc, maxUtc;
+    }
+
+    private TreeMap<String,DaySpan> mDays; //oldest first
+    private final Object REFRESH_LOCK = new Object();
+    private boolean mIndexFresh = false;
+
+    private LocationHistory(Context context)
+    {
+        super(FileType.data, SmsLoc_Common.Consts.DAY_DATA_FILENAME + ".index", context, GET_INSTANCE_LOCK);
+
+        loadFile();
+    }
+
+    public static LocationHistory getInstance(Context context)
+    {
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            if (mInstance == null) {
+                mInstance = new LocationHistory(context);
+            }
+            return mInstance;
+        }
+    }
+
+    @Override
+    protected void _loadCmd() throws IOException
+    {
+        mDays = new TreeMap<>();
+        mIndexFresh = false;
+
+        if (Files.size(mFilePath) == 0) {
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(mFilePath, StandardCharsets.UTF_8)) {
+            final DaySpan[] days = (new Gson()).fromJson(reader, DaySpan[].class);
+            if (days == null) {
+                return;
+            }
+            for (DaySpan day : days) {
+                if (day != null && day.date != null && day.addrs != null) {
+                    mDays.put(day.date, day);
+                }
+            }
+        }
+        catch (JsonParseException e) {
+            //index can always be rebuilt from the day files
+            mDays.clear();
+            throw new IOException("Corrupted history index, rebuilding: " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected WriteCmd _snapshotCmd()
+    {
+        // spans are never modified once they are in the index, only replaced
+        final ArrayList<DaySpan> days = new ArrayList<>(mDays.values());
+        return () -> Files.write(mFilePath, Collections.singleton((new Gson()).toJson(days)));
+    }
+
+    /**
+     * Deletes days past retention and (re)indexes day files that are new or changed since
+     * they were indexed. Reads files, do not call from the main thread.
+     * Files are read without LOCK, queries keep using the previous index until the new
+     * spans are swapped in.
+     */
+    public void refresh()
+    {
+        final long now = System.currentTimeMillis();
+        final String oldestKept = Utils.getDateForFilename(
+                now - (long) SmsLoc_Settings.HISTORY_RETENTION_DAYS.getInt(mAppContext) * Utils.DAY_2_MS);
+        final String openDay = SmsDayDataFile.getInstance(mAppContext).getDate();
+        final String today = Utils.getDateForFilename(now);
+
+        // one refresh at a time, a second one would only index the same files again
+        synchronized (REFRESH_LOCK)
+        {
+            final TreeMap<String,Path> dayFiles = new TreeMap<>();
+            try (Stream<Path> files = Files.list(mFilePath.getParent())) {
+                files.forEach((Path p) -> {
+                    final Matcher m = DAY_FILE_PATTERN.matcher(p.getFileName().toString());
+                    if (m.matches()) {
+                        dayFiles.put(m.group(1), p);
+                    }
+                });
+            }
+            catch (IOException e) {
+                Log.e(CLASS_TAG, "Listing day files failed: " + e.getMessage());
+                return;
+            }
+
+            for (Iterator<Map.Entry<String,Path>> it = dayFiles.entrySet().iterator(); it.hasNext();) {
+                final Map.Entry<String,Path> dayFile = it.next();
+                if (dayFile.getKey().compareTo(oldestKept) < 0 && !dayFile.getKey().equals(openDay)) {
+                    _deleteDay(dayFile.getValue());
+                    it.remove();
+                }
+            }
+
+            // spans are never modified once they are in the index, a shallow copy is enough
+            final HashMap<String,DaySpan> indexed;
+            synchronized (LOCK) {
+                indexed = new HashMap<>(mDays);
+            }
+            final HashMap<String,DaySpan> reindexed = new HashMap<>();
+            for (Map.Entry<String,Path> dayFile : dayFiles.entrySet()) {
+                final String date = dayFile.getKey();
+                if (date.equals(openDay) || date.compareTo(today) >= 0) {
+                    continue; //still being written
+                }
+                try {
+                    final DaySpan day = indexed.get(date);
+                    if (day == null || _fileChanged(day, dayFile.getValue())) {
+                        reindexed.put(date, _indexDay(date, dayFile.getValue()));
+                    }
+                }
+                catch (IOException e) {
+                    Log.e(CLASS_TAG, String.format("Indexing %s failed: %s", date, e.getMessage()));
+                }
+            }
+
+            synchronized (LOCK)
+            {
+                boolean changed = mDays.keySet().retainAll(dayFiles.keySet());
+                changed |= !reindexed.isEmpty();
+                mDays.putAll(reindexed);
+
+                mIndexFresh = true;
+                if (changed) {
+                    mDiskUnsynced = true;
+                }
+            }
+        }
+        writeFileAsync();
+    }
+
+    /**
+     * @return valid locations of addr with fromUtc <= utc <= toUtc, oldest first.
+     *         Reads day files, do not call from the main thread.
+     */
+    @NonNull
+    public ArrayList<GpsData> query(final String addr, final long fromUtc, final long toUtc)
+    {
+        boolean fresh;
+        synchronized (LOCK) {
+            fresh = mIndexFresh;
+        }
+        if (!fresh) {
+            refresh();
+        }
+
+        // collect what to read under lock, read without it
+        final LinkedHashMap<String,Integer> days = new LinkedHashMap<>();
+        synchronized (LOCK)
+        {
+            for (DaySpan day : mDays.values()) {
+                final AddrSpan span = day.addrs.get(addr);
+                if (span != null && span.numPoints != 0 && span.maxUtc >= fromUtc && span.minUtc <= toUtc) {
+                    days.put(day.date, span.ordinal);
+                }
+            }
+        }
+
+        final ArrayList<GpsData> result = new ArrayList<>();
+        for (Map.Entry<String,Integer> day : days.entrySet()) {
+            try {
+                final SmsLocData locData = DataUnitFile.readUnit(
+                        _dayPath(day.getKey()), SmsLocData.class, SmsLocData.Op.class,
+                        new SmsLocData.UnitFactory(), addr, day.getValue());
+                if (locData != null) {
+                    _addInRange(result, locData, fromUtc, toUtc);
+                }
+            }
+            catch (IOException e) {
+                Log.e(CLASS_TAG, String.format("Reading %s failed: %s", day.getKey(), e.getMessage()));
+            }
+        }
+
+        final SmsLocData openDay = SmsDayDataFile.getInstance(mAppContext).getDataEntry(addr);
+        if (openDay != null) {
+            _addInRange(result, openDay, fromUtc, toUtc);
+        }
+        return result;
+    }
+
+    /** @return number of days in the index, the open day not included */
+    public int numIndexedDays()
+    {
+        synchronized (LOCK) {
+            return mDays.size();
+        }
+    }
+
+    private static void _addInRange(ArrayList<GpsData> result, SmsLocData locData, long fromUtc, long toUtc)
+    {
+        final GpsTrack track = locData.getLocationData();
+        // sorted, start at the first point in range
+        int i = track.indexOf(fromUtc);
+        for (i = (i < 0) ? -i - 1 : i; i < track.size() && track.utc(i) <= toUtc; i++) {
+            result.add(track.get(i));
+        }
+    }
+
+    private DaySpan _indexDay(final String date, final Path dayPath) throws IOException
+    {
+        final DaySpan day = new DaySpan();
+        day.date = date;
+        _statDay(day, dayPath);
+
+        final HashMap<String,Integer> ordinals = new HashMap<>();
+        final LinkedHashMap<String,SmsLocData> units = DataUnitFile.readUnits(
+                dayPath, SmsLocData.class, SmsLocData.Op.class, new SmsLocData.UnitFactory(), ordinals);
+
+        for (SmsLocData unit : units.values()) {
+            final AddrSpan span = new AddrSpan();
+            final Integer ordinal = ordinals.get(unit.getId());
+            span.ordinal = (ordinal == null) ? -1 : ordinal;
+
+            final GpsTrack track = unit.getLocationData();
+            span.numPoints = track.size();
+            span.minUtc = track.isEmpty() ? 0 : track.utc(0);
+            span.maxUtc = track.isEmpty() ? 0 : track.utc(track.size() - 1);
+            day.addrs.put(unit.getId(), span);
+        }
+        return day;
+    }
+
+    private static void _statDay(DaySpan day, Path dayPath) throws IOException
+    {
+        final Path journal = dayPath.resolveSibling(dayPath.getFileName() + DataUnitFile.JOURNAL_SUFFIX);
+        day.snapshotSize = Files.size(dayPath);
+        day.snapshotModified = Files.getLastModifiedTime(dayPath).toMillis();
+        day.journalSize = Files.exists(journal) ? Files.size(journal) : 0;
+    }
+
+    private static boolean _fileChanged(DaySpan indexed, Path dayPath) throws IOException
+    {
+        final DaySpan current = new DaySpan();
+        _statDay(current, dayPath);
+        return current.snapshotSize != indexed.snapshotSize
+                || current.snapshotModified != indexed.snapshotModified
+                || current.journalSize != indexed.journalSize;
+    }
+
+    private Path _dayPath(final String date)
+    {
+        return mFilePath.resolveSibling(SmsDayDataFile.dayFilename(date));
+    }
+
+    /** Snapshot, journal and any leftover temp file */
+    private void _deleteDay(final Path dayPath)
+    {
+        final String prefix = dayPath.getFileName().toString();
+        try (Stream<Path> files = Files.list(dayPath.getParent())) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                if (p.getFileName().toString().startsWith(prefix)) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Log.i(CLASS_TAG, "Deleted day past retention: " + prefix);
+        }
+        catch (IOException e) {
+            Log.e(CLASS_TAG, String.format("Deleting %s failed: %s", prefix, e.getMessage()));
+        }
+    }
+}
@@ -17,30 +17,74 @@
 package io.github.wandomium.smsloc.data.file;
 
 import android.content.Context;
+import android.util.Log;
 
 import io.github.wandomium.smsloc.data.base.BaseFile;
 import io.github.wandomium.smsloc.defs.SmsLoc_Common;
 import io.github.wandomium.smsloc.defs.SmsLoc_Intents;
+import io.github.wandomium.smsloc.toolbox.RingBuffer;
 import io.github.wandomium.smsloc.toolbox.Utils;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
 
+/**
+ * Activity log.
+ * <p>
+ * The newest RING_CAPACITY entries are kept in memory in a ring buffer. On disk entries
+ * are appended (oldest first, one line per entry) to the active segment, which is
+ * rotated to <name>.<seq> when it grows over SEGMENT_MAX_BYTES. Only the newest
+ * MAX_SEGMENTS rotated segments are kept.
+ * Adding an entry is O(1) no matter how long the log is.
+ * <p>
+ * Readers page through the log with readLog(headSeq, offset, count). Pages within the
+ * ring are served from memory, older ones are read from the segments on disk.
+ */
 public class LogFile extends BaseFile
 {
+    public static final int  RING_CAPACITY     = 1000;
+    public static final long SEGMENT_MAX_BYTES = 64 * 1024;
+    public static final int  MAX_SEGMENTS      = 8;
+
+    private static final char FIELD_SEPARATOR = '\t';
+
+    /* Utils.msToStr format, time lines of the per day logs */
+    private static final String DAY_LOG_TIME_REGEX = "\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}";
+
     private static LogFile mInstance = null;
     private static final Object GET_INSTANCE_LOCK = new Object();
 
-    private ArrayList<String> mLogEntries;
+    public record Entry(String time, String msg){}
+    public record Page(long headSeq, List<Entry> entries){}
+
+    private final RingBuffer<Entry> mLogEntries;
+    private final ArrayList<Entry> mUnwritten;
+    private boolean mClearRequested = false;
+    private long mNextSegmentSeq = 1;
+
+    // Every added entry gets the next sequence number. Entries up to mWrittenSeq are on disk,
+    // those up to mClearedSeq were removed by clearLog
+    private long mAddedSeq = 0;
+    private long mWrittenSeq = 0;
+    private long mClearedSeq = 0;
+    private int  mClearsPending = 0;
 
     private LogFile(Context context)
     {
-        super(
-                FileType.log,
-                String.format("%s-%s", SmsLoc_Common.Consts.LOG_FILENAME, Utils.getDateForFilename()),
-                context, GET_INSTANCE_LOCK
-        );
+        super(FileType.log, SmsLoc_Common.Consts.LOG_FILENAME, context, GET_INSTANCE_LOCK);
+
+        mLogEntries = new RingBuffer<>(RING_CAPACITY);
+        mUnwritten = new ArrayList<>();
 
         loadFile();
     }
@@ -56,28 +100,75 @@ public class LogFile extends BaseFile
         }
     }
 
+    public static void flushIfLoaded()
+    {
+        final LogFile instance;
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            instance = mInstance;
+        }
+        if (instance != null) {
+            instance.flush();
+        }
+    }
+
     @Override
     protected void _loadCmd() throws IOException
     {
-        if (mLogEntries != null)
-        {
-            mLogEntries.clear();
+        mLogEntries.clear();
+        mUnwritten.clear();
+
+        final List<Path> segments = _listSegments();
+        mNextSegmentSeq = segments.isEmpty() ? 1 : _segmentSeq(segments.get(segments.size() - 1)) + 1;
+
+        _migrateDayLogs(segments.isEmpty() && Files.size(mFilePath) == 0);
+
+        final ArrayList<Entry> newestFirst = _readDisk(0, RING_CAPACITY);
+        for (int i = newestFirst.size() - 1; i >= 0; i--) {
+            mLogEntries.add(newestFirst.get(i));
         }
-        mLogEntries = new ArrayList<>(Files.readAllLines(mFilePath));
+        mAddedSeq = mWrittenSeq = mClearedSeq = 0;
+        mClearsPending = 0;
     }
 
     @Override
-    protected void _writeCmd() throws IOException
+    protected WriteCmd _snapshotCmd()
     {
-        Files.write(mFilePath, mLogEntries);
+        final boolean clear = mClearRequested;
+        final ArrayList<Entry> entries = new ArrayList<>(mUnwritten);
+        final long upToSeq = mAddedSeq;
+        mClearRequested = false;
+        mUnwritten.clear();
+
+        return () -> {
+            try {
+                _appendAndRotate(clear, entries);
+            }
+            catch (IOException e) {
+                // put them back, next write retries
+                synchronized (LOCK) {
+                    mUnwritten.addAll(0, entries);
+                    mClearRequested |= clear;
+                }
+                throw e;
+            }
+            synchronized (LOCK) {
+                mWrittenSeq = Math.max(mWrittenSeq, upToSeq);
+                if (clear) {
+                    mClearsPending--;
+                }
+            }
+        };
     }
 
     public void addLogEntry(final String msg)
     {
         synchronized (LOCK)
         {
-            mLogEntries.add(0, msg == null ? " " : msg);
-            mLogEntries.add(0, Utils.msToStr(System.currentTimeMillis()));
+            final Entry entry = new Entry(Utils.msToStr(System.currentTimeMillis()), msg == null ? " " : msg);
+            mLogEntries.add(entry);
+            mUnwritten.add(entry);
+            mAddedSeq++;
             mDiskUnsynced = true;
         }
         writeFileAsync();
@@ -85,10 +176,91 @@ public class LogFile extends BaseFile
         mAppContext.sendBroadcast(SmsLoc_Intents.generateSimpleIntent(mAppContext, SmsLoc_Intents.ACTION_LOG_UPDATED));
     }
 
-    public final ArrayList<String> readLog()
+    /** @return sequence number of the newest entry */
+    public long getHeadSeq()
     {
-        //we count on other entities that they will not mess with this log
-        return mLogEntries;
+        synchronized (LOCK) {
+            return mAddedSeq;
+        }
+    }
+
+    /**
+     * Reads a page of the log, newest first. Offset is counted from the entry that was the
+     * newest when the log had headSeq entries, so entries added in between do not shift the pages.
+     * May read from disk, do not call from the main thread.
+     *
+     * @return up to count entries, less when the end of the log is reached
+     */
+    public List<Entry> readLog(final long headSeq, final int offset, final int count)
+    {
+        final ArrayList<Entry> page = new ArrayList<>(count);
+        boolean flushed = false;
+        while (true)
+        {
+            final long writtenSeq;
+            final long diskSkip;
+            synchronized (LOCK)
+            {
+                page.clear();
+                int pos = (int) Math.max(0, offset + mAddedSeq - Math.max(headSeq, mClearedSeq));
+                while (pos < mLogEntries.size() && page.size() < count) {
+                    page.add(mLogEntries.get(pos++));
+                }
+                // ring not full means there is nothing older on disk
+                if (page.size() == count || mLogEntries.size() < RING_CAPACITY || mClearsPending > 0) {
+                    return page;
+                }
+                writtenSeq = mWrittenSeq;
+                diskSkip = pos - (mAddedSeq - mWrittenSeq);
+            }
+            if (diskSkip < 0) {
+                // entries we need already dropped out of the ring but are not on disk yet
+                if (flushed) {
+                    return page; //write failed, nothing more we can do
+                }
+                flush();
+                flushed = true;
+                continue;
+            }
+
+            final ArrayList<Entry> older;
+            try {
+                older = _readDisk((int) diskSkip, count - page.size());
+            }
+            catch (IOException e) {
+                Log.e(CLASS_TAG, "Reading log page failed: " + e.getMessage());
+                return page;
+            }
+
+            // an append or rotation while reading shifts the offsets on disk, try again
+            synchronized (LOCK)
+            {
+                if (writtenSeq == mWrittenSeq && mClearsPending == 0) {
+                    page.addAll(older);
+                    return page;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return entries added after sinceSeq, newest first, or null if the log was cleared since
+     *         or they are not all in memory anymore (reload from the start in that case)
+     */
+    public Page readNewer(final long sinceSeq)
+    {
+        synchronized (LOCK)
+        {
+            final long added = mAddedSeq - sinceSeq;
+            if (sinceSeq < mClearedSeq || added < 0 || added > mLogEntries.size()) {
+                return null;
+            }
+            final ArrayList<Entry> entries = new ArrayList<>((int) added);
+            for (int i = 0; i < added; i++) {
+                entries.add(mLogEntries.get(i));
+            }
+            return new Page(mAddedSeq, entries);
+        }
     }
 
     public void clearLog()
@@ -96,8 +268,214 @@ public class LogFile extends BaseFile
         synchronized (LOCK)
         {
             mLogEntries.clear();
+            mUnwritten.clear();
+            if (!mClearRequested) {
+                mClearRequested = true;
+                mClearsPending++;
+            }
+            // clearing takes a sequence number too, so readers that saw the old entries notice
+            mClearedSeq = ++mAddedSeq;
             mDiskUnsynced = true;
         }
         writeFileAsync();
     }
+
+    /***** DISK *****/
+    private void _appendAndRotate(final boolean clear, final ArrayList<Entry> entries) throws IOException
+    {
+        if (clear) {
+            Files.write(mFilePath, new byte[0]);
+            for (Path segment : _listSegments()) {
+                Files.deleteIfExists(segment);
+            }
+            mNextSegmentSeq = 1;
+        }
+
+        // rotate as we go, one delayed write can carry a lot of entries
+        int next = 0;
+        while (next < entries.size()) {
+            long size = Files.size(mFilePath);
+            try (BufferedWriter writer = Files.newBufferedWriter(mFilePath, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE)) {
+                while (next < entries.size() && size < SEGMENT_MAX_BYTES) {
+                    final String line = _encode(entries.get(next++));
+                    writer.write(line);
+                    writer.newLine();
+                    size += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                }
+            }
+            if (size >= SEGMENT_MAX_BYTES) {
+                _rotate();
+            }
+        }
+    }
+
+    private void _rotate() throws IOException
+    {
+        final Path segment = mFilePath.resolveSibling(
+                String.format(SmsLoc_Common.LOCALE, "%s.%06d", mFilename, mNextSegmentSeq++));
+        Files.move(mFilePath, segment, StandardCopyOption.REPLACE_EXISTING);
+        Files.createFile(mFilePath);
+
+        final List<Path> segments = _listSegments();
+        for (int i = 0; i < segments.size() - MAX_SEGMENTS; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    /** Reads newest first, going from the active segment towards the oldest one */
+    private ArrayList<Entry> _readDisk(int skip, final int count) throws IOException
+    {
+        final ArrayList<Entry> entries = new ArrayList<>(Math.min(count, RING_CAPACITY));
+        final List<Path> files = _listSegments();
+        files.add(mFilePath);
+        for (int f = files.size() - 1; f >= 0 && entries.size() < count; f--) {
+            final List<String> lines;
+            try {
+                lines = Files.readAllLines(files.get(f), StandardCharsets.UTF_8);
+            }
+            catch (NoSuchFileException e) {
+                continue; //pruned by rotation meanwhile
+            }
+            for (int i = lines.size() - 1; i >= 0 && entries.size() < count; i--) {
+                final Entry entry = _decode(lines.get(i));
+                if (entry == null) {
+                    continue;
+                }
+                if (skip > 0) {
+                    skip--;
+                }
+                else {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /** @return rotated segments, oldest first */
+    private List<Path> _listSegments() throws IOException
+    {
+        final ArrayList<Path> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(mFilePath.getParent())) {
+            files.filter(p -> _segmentSeq(p) > 0).forEach(segments::add);
+        }
+        segments.sort((a, b) -> Long.compare(_segmentSeq(a), _segmentSeq(b)));
+        return segments;
+    }
+
+    /** @return segment number or -1 if this is not one of our segments */
+    private long _segmentSeq(Path path)
+    {
+        final String name = path.getFileName().toString();
+        if (!name.startsWith(mFilename + ".")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(mFilename.length() + 1));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Before segments, log was kept in one file per day, newest entry first,
+     * time and message on separate lines. All of them are brought over once, oldest day
+     * first, rotation drops what does not fit. Day files found when the log already has
+     * entries (killed while migrating) cannot be merged in order and are only deleted.
+     * @param migrate log is empty, day files can be appended */
+    private void _migrateDayLogs(final boolean migrate) throws IOException
+    {
+        final ArrayList<Path> dayLogs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(mFilePath.getParent())) {
+            files.filter(p -> _isDayLog(p.getFileName().toString())).forEach(dayLogs::add);
+        }
+        // yyyy-MM-dd, name order is date order
+        Collections.sort(dayLogs);
+
+        for (Path dayLog : dayLogs) {
+            if (migrate) {
+                final ArrayList<Entry> entries = _parseDayLog(Files.readAllLines(dayLog, StandardCharsets.UTF_8));
+                _appendAndRotate(false, entries);
+                Log.i(CLASS_TAG, String.format("Migrated %d log entries from %s", entries.size(), dayLog.getFileName()));
+            }
+            else {
+                Log.e(CLASS_TAG, "Deleted unmigrated " + dayLog.getFileName());
+            }
+            Files.delete(dayLog);
+        }
+    }
+
+    /** Messages were written as they were, with their new lines. An entry starts at a
+     * msToStr time line, all lines up to the next one are its message.
+     * @return entries oldest first */
+    private static ArrayList<Entry> _parseDayLog(final List<String> lines)
+    {
+        final ArrayList<Entry> entries = new ArrayList<>(lines.size() / 2);
+        String time = null;
+        final StringBuilder msg = new StringBuilder();
+        for (String line : lines) {
+            if (line.matches(DAY_LOG_TIME_REGEX)) {
+                if (time != null) {
+                    entries.add(new Entry(time, msg.toString()));
+                }
+                time = line;
+                msg.setLength(0);
+            }
+            else if (time != null) {
+                if (msg.length() != 0) {
+                    msg.append('\n');
+                }
+                msg.append(line);
+            }
+            // lines before the first time line have nothing to belong to
+        }
+        if (time != null) {
+            entries.add(new Entry(time, msg.toString()));
+        }
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    private boolean _isDayLog(final String name)
+    {
+        return name.startsWith(mFilename + "-")
+                && name.substring(mFilename.length() + 1).matches("\\d{4}-\\d{2}-\\d{2}");
+    }
+
+    private static String _encode(Entry entry)
+    {
+        final StringBuilder sb = new StringBuilder(entry.time().length() + entry.msg().length() + 8)
+                .append(entry.time()).append(FIELD_SEPARATOR);
+        for (int i = 0; i < entry.msg().length(); i++) {
+            final char c = entry.msg().charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                default -> sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static Entry _decode(String line)
+    {
+        final int sep = line.indexOf(FIELD_SEPARATOR);
+        if (sep < 0) {
+            return null;
+        }
+        final StringBuilder msg = new StringBuilder(line.length() - sep);
+        for (int i = sep + 1; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                final char n = line.charAt(++i);
+                msg.append(n == 'n' ? '\n' : (n == 'r' ? '\r' : n));
+            }
+            else {
+                msg.append(c);
+            }
+        }
+        return new Entry(line.substring(0, sep), msg.toString());
+    }
 }
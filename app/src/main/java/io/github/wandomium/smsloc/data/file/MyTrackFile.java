@@ -0,0 +1,165 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.data.file;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import io.github.wandomium.smsloc.data.base.BaseFile;
+import io.github.wandomium.smsloc.data.unit.GpsData;
+import io.github.wandomium.smsloc.data.unit.GpsTrack;
+import io.github.wandomium.smsloc.data.unit.GpsTrackCodec;
+import io.github.wandomium.smsloc.defs.SmsLoc_Common;
+import io.github.wandomium.smsloc.toolbox.Utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Our own recent fixes, the ones we answered requests with. Used to answer trail requests.
+ * <p>
+ * The last MAX_POINTS fixes not older than MAX_AGE_MS are kept, trimmed in batches. Stored in the
+ * GpsTrackCodec binary format.
+ */
+public class MyTrackFile extends BaseFile
+{
+    private static MyTrackFile mInstance = null;
+    private static final Object GET_INSTANCE_LOCK = new Object();
+
+    public static final long MAX_AGE_MS = Utils.DAY_2_MS;
+    public static final int MAX_POINTS = 500;
+    // expired points are dropped in batches, not on every add
+    private static final long TRIM_SLACK_MS = 60L * Utils.MIN_2_MS;
+    private static final int TRIM_SLACK_POINTS = MAX_POINTS / 4;
+
+    private GpsTrack mTrack;
+
+    private MyTrackFile(Context context)
+    {
+        super(FileType.data, SmsLoc_Common.Consts.MY_TRACK_FILENAME, context, GET_INSTANCE_LOCK);
+
+        loadFile();
+    }
+
+    public static MyTrackFile getInstance(Context context)
+    {
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            if (mInstance == null) {
+                mInstance = new MyTrackFile(context);
+            }
+            return mInstance;
+        }
+    }
+
+    public static void flushIfLoaded()
+    {
+        final MyTrackFile instance;
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            instance = mInstance;
+        }
+        if (instance != null) {
+            instance.flush();
+        }
+    }
+
+    @Override
+    protected void _loadCmd() throws IOException
+    {
+        mTrack = new GpsTrack();
+
+        final byte[] data = Files.readAllBytes(mFilePath);
+        if (data.length == 0) {
+            return;
+        }
+        try {
+            mTrack = GpsTrackCodec.decode(data);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Corrupted track: " + e.getMessage());
+        }
+        _trim(System.currentTimeMillis(), true);
+    }
+
+    @Override
+    protected WriteCmd _snapshotCmd()
+    {
+        final GpsTrack track = mTrack.share();
+        return () -> Files.write(mFilePath, GpsTrackCodec.encode(track));
+    }
+
+    /** Invalid locations are ignored. Call writeFileAsync to store */
+    public void addLocation(GpsData location)
+    {
+        if (location == null || !location.dataValid()) {
+            return;
+        }
+        synchronized (LOCK)
+        {
+            if (mTrack.add(location)) {
+                _trim(System.currentTimeMillis(), false);
+                mDiskUnsynced = true;
+            }
+        }
+    }
+
+    /**
+     * @param maxPoints max number of points returned
+     * @param sinceUtc only points newer than this, 0 for all
+     * @return newest first
+     */
+    @NonNull
+    public ArrayList<GpsData> getTrail(int maxPoints, long sinceUtc)
+    {
+        final long minUtc = Math.max(sinceUtc + 1, System.currentTimeMillis() - MAX_AGE_MS);
+        final ArrayList<GpsData> trail = new ArrayList<>(Math.min(maxPoints, MAX_POINTS));
+        synchronized (LOCK)
+        {
+            for (int i = mTrack.size() - 1; i >= 0 && trail.size() < maxPoints && mTrack.utc(i) >= minUtc; i--) {
+                trail.add(mTrack.get(i));
+            }
+        }
+        return trail;
+    }
+
+    // called with LOCK held
+    private void _trim(final long now, final boolean force)
+    {
+        final int size = mTrack.size();
+        if (size == 0) {
+            return;
+        }
+        final boolean expired = mTrack.utc(0) < now - MAX_AGE_MS - (force ? 0 : TRIM_SLACK_MS);
+        if (!expired && size <= MAX_POINTS + (force ? 0 : TRIM_SLACK_POINTS)) {
+            return;
+        }
+
+        int from = mTrack.indexOf(now - MAX_AGE_MS);
+        from = Math.max(size - MAX_POINTS, from < 0 ? -from - 1 : from);
+
+        final GpsTrack trimmed = new GpsTrack(MAX_POINTS + TRIM_SLACK_POINTS);
+        for (int i = from; i < size; i++) {
+            trimmed.add(mTrack.lat(i), mTrack.lon(i), mTrack.alt(i), mTrack.utc(i),
+                    mTrack.speed(i), mTrack.acc(i), mTrack.bat(i));
+        }
+        mTrack = trimmed;
+        mDiskUnsynced = true;
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.data.file;
+
+import android.content.Context;
+import android.util.Log;
+
+import io.github.wandomium.smsloc.data.base.BaseFile;
+import io.github.wandomium.smsloc.defs.SmsLoc_Common;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * Work queued in the foreground services that was not finished yet, so it survives the
+ * process being killed. See ABaseFgService.
+ * <p>
+ * Append only, one json record per line: an entry when work is queued and an ack when it
+ * is done. Entries without an ack are pending. The file is rewritten with only the pending
+ * entries once it has COMPACT_THRESHOLD lines. Every change is written right away.
+ */
+public class OutboxFile extends BaseFile
+{
+    private static OutboxFile mInstance = null;
+    private static final Object GET_INSTANCE_LOCK = new Object();
+
+    public static final int COMPACT_THRESHOLD = 64;
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** @param data service specific, json */
+    public record Entry(long id, String service, String addr, String data, long utc){}
+
+    /* file format, service == null for acks */
+    private static final class Line
+    {
+        long id;
+        String service;
+        String addr;
+        String data;
+        long utc;
+    }
+
+    private LinkedHashMap<Long, Entry> mPending;
+    private ArrayList<Line> mUnwritten = new ArrayList<>();
+    private int mLinesOnDisk = 0;
+    private boolean mRewriteRequired = false;
+    private long mNextId = 1;
+
+    private OutboxFile(Context context)
+    {
+        super(FileType.data, SmsLoc_Common.Consts.OUTBOX_FILENAME, context, GET_INSTANCE_LOCK);
+        setWriteBehind(0, 0);
+
+        loadFile();
+    }
+
+    public static OutboxFile getInstance(Context context)
+    {
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            if (mInstance == null) {
+                mInstance = new OutboxFile(context);
+            }
+            return mInstance;
+        }
+    }
+
+    public static void flushIfLoaded()
+    {
+        final OutboxFile instance;
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            instance = mInstance;
+        }
+        if (instance != null) {
+            instance.flush();
+        }
+    }
+
+    @Override
+    protected void _loadCmd() throws IOException
+    {
+        mPending = new LinkedHashMap<>();
+        mUnwritten.clear();
+        mLinesOnDisk = 0;
+
+        final Gson gson = new Gson();
+        int numCorrupted = 0;
+        try (BufferedReader reader = Files.newBufferedReader(mFilePath, StandardCharsets.UTF_8)) {
+            String str;
+            while ((str = reader.readLine()) != null) {
+                if (str.isEmpty()) {
+                    continue;
+                }
+                mLinesOnDisk++;
+                try {
+                    final Line line = gson.fromJson(str, Line.class);
+                    if (line == null) {
+                        numCorrupted++;
+                        continue;
+                    }
+                    mNextId = Math.max(mNextId, line.id + 1);
+                    if (line.service == null) {
+                        mPending.remove(line.id);
+                    }
+                    else {
+                        mPending.put(line.id, new Entry(line.id, line.service, line.addr, line.data, line.utc));
+                    }
+                }
+                catch (JsonParseException e) {
+                    // torn last line, we were killed while appending
+                    numCorrupted++;
+                }
+            }
+        }
+        if (numCorrupted != 0) {
+            mRewriteRequired = true;
+            mDiskUnsynced = true;
+            Log.e(CLASS_TAG, String.format(SmsLoc_Common.LOCALE,
+                    "Corrupted outbox records: %d/%d", numCorrupted, mLinesOnDisk));
+        }
+    }
+
+    @Override
+    protected WriteCmd _snapshotCmd()
+    {
+        if (!mRewriteRequired && mLinesOnDisk + mUnwritten.size() <= COMPACT_THRESHOLD) {
+            final ArrayList<Line> lines = mUnwritten;
+            mUnwritten = new ArrayList<>();
+            mLinesOnDisk += lines.size();
+            return () -> _append(lines);
+        }
+
+        final ArrayList<Line> lines = new ArrayList<>(mPending.size());
+        for (Entry entry : mPending.values()) {
+            lines.add(_toLine(entry));
+        }
+        mUnwritten.clear();
+        mLinesOnDisk = lines.size();
+        mRewriteRequired = false;
+        return () -> _rewrite(lines);
+    }
+
+    @Override
+    protected void _onWriteFailed()
+    {
+        // lines handed to the failed command are gone, mPending still has everything
+        mRewriteRequired = true;
+    }
+
+    /** Call writeFileAsync to store */
+    public long add(String service, String addr, String data)
+    {
+        synchronized (LOCK)
+        {
+            final Entry entry = new Entry(mNextId++, service, addr, data, System.currentTimeMillis());
+            mPending.put(entry.id(), entry);
+            mUnwritten.add(_toLine(entry));
+            mDiskUnsynced = true;
+            return entry.id();
+        }
+    }
+
+    /** Call writeFileAsync to store */
+    public void ack(long id)
+    {
+        synchronized (LOCK)
+        {
+            if (mPending.remove(id) == null) {
+                return;
+            }
+            final Line line = new Line();
+            line.id = id;
+            mUnwritten.add(line);
+            mDiskUnsynced = true;
+        }
+    }
+
+    /** @return pending entries of the service, oldest first */
+    public ArrayList<Entry> getPending(String service)
+    {
+        final ArrayList<Entry> entries = new ArrayList<>();
+        synchronized (LOCK)
+        {
+            for (Entry entry : mPending.values()) {
+                if (entry.service().equals(service)) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /** @return services with entries that are not older than maxAgeMs */
+    public HashSet<String> getPendingServices(long maxAgeMs)
+    {
+        final long now = System.currentTimeMillis();
+        final HashSet<String> services = new HashSet<>();
+        synchronized (LOCK)
+        {
+            for (Entry entry : mPending.values()) {
+                if (now - entry.utc() <= maxAgeMs) {
+                    services.add(entry.service());
+                }
+            }
+        }
+        return services;
+    }
+
+    private static Line _toLine(Entry entry)
+    {
+        final Line line = new Line();
+        line.id = entry.id();
+        line.service = entry.service();
+        line.addr = entry.addr();
+        line.data = entry.data();
+        line.utc = entry.utc();
+        return line;
+    }
+
+    private void _append(ArrayList<Line> lines) throws IOException
+    {
+        if (lines.isEmpty()) {
+            return;
+        }
+        final Gson gson = new Gson();
+        try (BufferedWriter writer = Files.newBufferedWriter(mFilePath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE)) {
+            for (Line line : lines) {
+                writer.write(gson.toJson(line));
+                writer.newLine();
+            }
+        }
+    }
+
+    private void _rewrite(ArrayList<Line> lines) throws IOException
+    {
+        final Gson gson = new Gson();
+        final Path tmpPath = mFilePath.resolveSibling(mFilename + TMP_SUFFIX);
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+            for (Line line : lines) {
+                writer.write(gson.toJson(line));
+                writer.newLine();
+            }
+        }
+        Files.move(tmpPath, mFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -53,4 +53,16 @@ public class PeopleDataFile extends DataUnitFile<PersonData> {
             return mInstance;
         }
     }
+
+    public static void flushIfLoaded()
+    {
+        final PeopleDataFile instance;
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            instance = mInstance;
+        }
+        if (instance != null) {
+            instance.flush();
+        }
+    }
 }
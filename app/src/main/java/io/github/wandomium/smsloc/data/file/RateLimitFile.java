@@ -0,0 +1,245 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.data.file;
+
+import android.content.Context;
+
+import io.github.wandomium.smsloc.data.base.BaseFile;
+import io.github.wandomium.smsloc.defs.SmsLoc_Common;
+import io.github.wandomium.smsloc.defs.SmsLoc_Settings;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Token buckets in front of incoming requests, one per sender and one for everyone.
+ * Every answered request costs an SMS and usually a GPS fix, a looping or misbehaving
+ * peer should not be able to drain the battery and SMS credit.
+ * <p>
+ * A suppressed request waits for the next allowed one from the same sender, or for the
+ * deferred answer SmsReceiver schedules when the buckets refill. Limits come from
+ * RATE_LIMIT_SENDER and RATE_LIMIT_GLOBAL (per hour).
+ * <p>
+ * Stored, the receiver runs in a process that is started and killed for every SMS.
+ * Times are wall clock so they survive a reboot, a clock set back refills nothing.
+ */
+public class RateLimitFile extends BaseFile
+{
+    private static RateLimitFile mInstance = null;
+    private static final Object GET_INSTANCE_LOCK = new Object();
+
+    /* Requests that can come in at once before the hourly rate applies */
+    public static final int SENDER_BURST = 3;
+    public static final int GLOBAL_BURST = 10;
+    /* Senders with full buckets and nothing waiting are dropped once there are this many */
+    private static final int MAX_SENDERS = 64;
+
+    /** tryAcquire results */
+    public static final int SUPPRESSED = -1;
+
+    /** @param waiting suppressed since the last answer to the sender */
+    public record Stats(int waiting, long senderAllowed, long senderSuppressed, long allowed, long suppressed)
+    {
+        @Override
+        public String toString() {
+            return String.format(SmsLoc_Common.LOCALE,
+                    "%d waiting, sender %d answered/%d suppressed, all %d answered/%d suppressed",
+                    waiting, senderAllowed, senderSuppressed, allowed, suppressed);
+        }
+    }
+
+    /* file format */
+    private static final class Bucket
+    {
+        double tokens;
+        long lastMs;
+        int waiting;
+        long allowed;
+        long suppressed;
+
+        Bucket(int burst, long now) {
+            tokens = burst;
+            lastMs = now;
+        }
+
+        void refill(long now, int perHour, int burst) {
+            tokens = Math.min(burst, tokens + Math.max(0, now - lastMs) * perHour / 3600000.0);
+            lastMs = now;
+        }
+
+        /** @return ms until there is a token, 0 if there is one or there is no limit */
+        long msUntilToken(int perHour) {
+            return (perHour <= 0 || tokens >= 1) ? 0 : (long) Math.ceil((1 - tokens) * 3600000.0 / perHour);
+        }
+    }
+
+    private static final class State
+    {
+        HashMap<String, Bucket> senders = new HashMap<>();
+        Bucket global;
+    }
+
+    private State mState;
+
+    private RateLimitFile(Context context)
+    {
+        super(FileType.data, SmsLoc_Common.Consts.RATE_LIMIT_FILENAME, context, GET_INSTANCE_LOCK);
+
+        loadFile();
+    }
+
+    public static RateLimitFile getInstance(Context context)
+    {
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            if (mInstance == null) {
+                mInstance = new RateLimitFile(context);
+            }
+            return mInstance;
+        }
+    }
+
+    public static void flushIfLoaded()
+    {
+        final RateLimitFile instance;
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            instance = mInstance;
+        }
+        if (instance != null) {
+            instance.flush();
+        }
+    }
+
+    @Override
+    protected void _loadCmd() throws IOException
+    {
+        mState = new State();
+
+        if (Files.size(mFilePath) == 0) {
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(mFilePath, StandardCharsets.UTF_8)) {
+            final State state = (new Gson()).fromJson(reader, State.class);
+            if (state != null && state.senders != null) {
+                mState = state;
+            }
+        }
+        catch (JsonParseException e) {
+            //start with full buckets
+            throw new IOException("Corrupted rate limits: " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected WriteCmd _snapshotCmd()
+    {
+        // small, serialize under LOCK instead of copying every bucket
+        final String json = (new Gson()).toJson(mState);
+        return () -> Files.write(mFilePath, Collections.singleton(json));
+    }
+
+    /**
+     * Takes a token from the sender's and the global bucket, if both have one.
+     * Call writeFileAsync to store
+     * @return number of earlier suppressed requests of addr this one answers or SUPPRESSED
+     */
+    public int tryAcquire(String addr)
+    {
+        final int senderRate = SmsLoc_Settings.RATE_LIMIT_SENDER.getInt(mAppContext);
+        final int globalRate = SmsLoc_Settings.RATE_LIMIT_GLOBAL.getInt(mAppContext);
+        final long now = System.currentTimeMillis();
+
+        synchronized (LOCK)
+        {
+            final Bucket sender = _refill(addr, now, senderRate, globalRate);
+            mDiskUnsynced = true;
+            if (sender.msUntilToken(senderRate) > 0 || mState.global.msUntilToken(globalRate) > 0) {
+                sender.waiting++;
+                sender.suppressed++;
+                mState.global.suppressed++;
+                return SUPPRESSED;
+            }
+            if (senderRate > 0) {
+                sender.tokens--;
+            }
+            if (globalRate > 0) {
+                mState.global.tokens--;
+            }
+            sender.allowed++;
+            mState.global.allowed++;
+            final int answered = sender.waiting;
+            sender.waiting = 0;
+            return answered;
+        }
+    }
+
+    /** @return ms until a request from addr would be answered */
+    public long msUntilAllowed(String addr)
+    {
+        final int senderRate = SmsLoc_Settings.RATE_LIMIT_SENDER.getInt(mAppContext);
+        final int globalRate = SmsLoc_Settings.RATE_LIMIT_GLOBAL.getInt(mAppContext);
+        synchronized (LOCK)
+        {
+            final Bucket sender = _refill(addr, System.currentTimeMillis(), senderRate, globalRate);
+            return Math.max(sender.msUntilToken(senderRate), mState.global.msUntilToken(globalRate));
+        }
+    }
+
+    public Stats getStats(String addr)
+    {
+        synchronized (LOCK)
+        {
+            final Bucket sender = mState.senders.get(addr);
+            final Bucket global = mState.global;
+            return new Stats(sender == null ? 0 : sender.waiting,
+                    sender == null ? 0 : sender.allowed, sender == null ? 0 : sender.suppressed,
+                    global == null ? 0 : global.allowed, global == null ? 0 : global.suppressed);
+        }
+    }
+
+    /** Called with LOCK held */
+    private Bucket _refill(String addr, long now, int senderRate, int globalRate)
+    {
+        if (mState.global == null) {
+            mState.global = new Bucket(GLOBAL_BURST, now);
+        }
+        mState.global.refill(now, globalRate, GLOBAL_BURST);
+
+        Bucket sender = mState.senders.get(addr);
+        if (sender == null) {
+            if (mState.senders.size() >= MAX_SENDERS) {
+                // their counters are still in the global totals
+                mState.senders.values().removeIf(bucket -> {
+                    bucket.refill(now, senderRate, SENDER_BURST);
+                    return bucket.waiting == 0 && bucket.tokens >= SENDER_BURST;
+                });
+            }
+            sender = new Bucket(SENDER_BURST, now);
+            mState.senders.put(addr, sender);
+        }
+        sender.refill(now, senderRate, SENDER_BURST);
+        return sender;
+    }
+}
@@ -32,15 +32,30 @@ public class SmsDayDataFile extends DataUnitFile<SmsLocData>
     private static SmsDayDataFile mInstance = null;
     private static final Object GET_INSTANCE_LOCK = new Object();
 
-    private SmsDayDataFile(Context context)
+    private final String mDate;
+
+    private SmsDayDataFile(Context context, final String date)
     {
         super(
                 FileType.data,
-                String.format("%s-%s", SmsLoc_Common.Consts.DAY_DATA_FILENAME, Utils.getDateForFilename()),
+                dayFilename(date),
                 context, GET_INSTANCE_LOCK,
                 new TypeToken<SmsLocData[]>() {}.getType(),
+                SmsLocData.Op.class,
                 new SmsLocData.UnitFactory()
         );
+        mDate = date;
+    }
+
+    public static String dayFilename(final String date)
+    {
+        return String.format("%s-%s", SmsLoc_Common.Consts.DAY_DATA_FILENAME, date);
+    }
+
+    /** Day this file was opened for, see Utils.getDateForFilename */
+    public String getDate()
+    {
+        return mDate;
     }
 
     public static SmsDayDataFile getInstance(Context context)
@@ -48,9 +63,21 @@ public class SmsDayDataFile extends DataUnitFile<SmsLocData>
         synchronized (GET_INSTANCE_LOCK)
         {
             if (mInstance == null) {
-                mInstance = new SmsDayDataFile(context);
+                mInstance = new SmsDayDataFile(context, Utils.getDateForFilename());
             }
             return mInstance;
         }
     }
+
+    public static void flushIfLoaded()
+    {
+        final SmsDayDataFile instance;
+        synchronized (GET_INSTANCE_LOCK)
+        {
+            instance = mInstance;
+        }
+        if (instance != null) {
+            instance.flush();
+        }
+    }
 }
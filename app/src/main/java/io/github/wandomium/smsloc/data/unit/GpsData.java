@@ -25,6 +25,7 @@ import io.github.wandomium.smsloc.defs.SmsLoc_Common;
 import com.google.gson.Gson;
 import com.google.gson.JsonParseException;
 
+import java.math.BigDecimal;
 import java.util.Comparator;
 
 /** Core class for sending sms messages
@@ -58,6 +59,10 @@ public final class GpsData
         this.bat_pct = bat_pct;
     }
 
+    public static GpsData invalid() {
+        return new GpsData();
+    }
+
     public Float distanceFrom(@NonNull Location loc)
     {
         float[] retval = {0.0f};
@@ -66,6 +71,19 @@ public final class GpsData
 
     }
 
+    private static final double EARTH_RADIUS_M = 6371008.8;
+
+    /** Great circle distance in m. Within 0.5% of distanceFrom (sphere vs ellipsoid), without android.location */
+    public double distanceTo(@NonNull GpsData other)
+    {
+        final double dLat = Math.toRadians(other.lat - lat);
+        final double dLon = Math.toRadians(other.lon - lon);
+        final double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat)) * Math.cos(Math.toRadians(other.lat))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_M * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
     public static GpsData fromLocationAndBat(final Location loc, final int bat_pct)
     {
         return loc == null ? new GpsData() : new GpsData(
@@ -79,43 +97,250 @@ public final class GpsData
         );
     }
 
-    public static GpsData fromSmsText(String str) {
-        String[] params = str.split(",", 7);
-        try {
-            return new GpsData(
-            /*retval.lat      = */Double.parseDouble(params[0]),
-            /*retval.lon      = */Double.parseDouble(params[1]),
-            /*retval.alt_m    = */Integer.parseInt(params[2]),
-            /*retval.utc_s    = */Long.parseLong(params[3]) * 1000,
-            /*retval.v_kmh    = */Integer.parseInt(params[4]),
-            /*retval.acc_m    = */Integer.parseInt(params[5]),
-            /*retval.bat_pct  = */Integer.parseInt(params[6]));
-        }
-        catch (NumberFormatException | ArrayIndexOutOfBoundsException e) { return new GpsData(); }
+    /** @return invalid GpsData if the text cannot be parsed */
+    public static GpsData fromSmsText(CharSequence str) {
+        return fromSmsText(str, 0);
+    }
+    public static GpsData fromSmsText(CharSequence str, int start) {
+        final SmsParser parser = new SmsParser();
+        return parser.parse(str, start, str.length()) == SmsParser.OK ? parser.toGpsData() : new GpsData();
     }
 
     /* This needs to be kept below 160 characters so it fits
        in one sms */
     public String toSmsText() {
+        return appendSmsText(new StringBuilder(48)).toString();
+    }
+
+    /**
+     * Same text as String.format(LOCALE, "%.4f,%.4f,%d,%d,%d,%d,%d", ...) used to produce,
+     * without the formatter and its allocations. Invalid data appends GPS_DATA_INVALID_ERR_STR.
+     */
+    public StringBuilder appendSmsText(StringBuilder sb) {
 
         if (!dataValid()) {
-            return SmsLoc_Common.Consts.GPS_DATA_INVALID_ERR_STR;
+            return sb.append(SmsLoc_Common.Consts.GPS_DATA_INVALID_ERR_STR);
         }
-        try {
-            /* A value in decimal degrees to an accuracy of
-               4 decimal places is accurate to 11.1 meters (+/- 5.55 m) at the equator.
+        /* A value in decimal degrees to an accuracy of
+           4 decimal places is accurate to 11.1 meters (+/- 5.55 m) at the equator.
+
+           the accuracy of the longitude increases the further from the equator you get.
+           The accuracy of the latitude part does not increase.
+
+           range: lat +-90, lon +-180
+
+           For UTC we round it to seconds
+         */
+        _appendFixed4(sb, lat).append(',');
+        _appendFixed4(sb, lon).append(',');
+        return sb.append(alt_m).append(',')
+                .append(utc / 1000).append(',')
+                .append(v_kmh).append(',')
+                .append(acc_m).append(',')
+                .append(bat_pct);
+    }
 
-               the accuracy of the longitude increases the further from the equator you get.
-               The accuracy of the latitude part does not increase.
+    private static StringBuilder _appendFixed4(StringBuilder sb, double v)
+    {
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            return sb.append(String.format(SmsLoc_Common.LOCALE, "%.4f", v));
+        }
+        // Formatter prints the sign for -0.0 as well
+        if (Double.compare(v, 0.0) < 0) {
+            sb.append('-');
+            v = -v;
+        }
+        final long n = _roundHalfUp4(v);
+        sb.append(n / 10000).append('.');
+        final int frac = (int) (n % 10000);
+        for (int d = 1000; d > 0; d /= 10) {
+            sb.append((char) ('0' + (frac / d) % 10));
+        }
+        return sb;
+    }
 
-               range: lat +-90, lon +-180
+    /**
+     * v * 1e4 rounded the way %.4f does it: Formatter rounds the shortest decimal
+     * representation of v half up, not its exact binary value. The two only disagree
+     * when that representation ends exactly on the tie.
+     * @param v >= 0
+     */
+    private static long _roundHalfUp4(double v)
+    {
+        final double x = v * 1e4;
+        final long n = (long) Math.floor(x);
+        if ((10 * n + 5) / 1e5 == v) {
+            return n + 1; //shortest representation is the tie itself
+        }
+        final double dist = x - (n + 0.5);
+        if (Math.abs(dist) > 1e-6) {
+            return dist > 0 ? n + 1 : n;
+        }
+        // too close to call in double, rare
+        return new BigDecimal(v).compareTo(BigDecimal.valueOf(10 * n + 5, 5)) > 0 ? n + 1 : n;
+    }
+
+    /**
+     * Single pass parser for the SMS text, reports errors with codes instead of exceptions
+     * and does not create intermediate strings. Reusable, results are in the public fields.
+     * <p>
+     * Takes the same input as the split/parseDouble parser it replaced (see GpsDataTest),
+     * except utc seconds that overflow when converted to ms: those wrapped around before
+     * and are ERR_OUT_OF_RANGE now.
+     */
+    public static final class SmsParser
+    {
+        public static final int OK = 0;
+        public static final int ERR_NUM_FIELDS = 1;
+        public static final int ERR_NOT_A_NUMBER = 2;
+        public static final int ERR_OUT_OF_RANGE = 3;
+
+        private static final int NUM_FIELDS = 7;
+        private static final int MAX_DIGITS = 15; //mantissa stays exact in a double
+        private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+                1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+        public double lat, lon;
+        public int    alt_m;
+        public long   utc;
+        public int    v_kmh, acc_m, bat_pct;
+        /** index of the field that failed */
+        public int    errField;
+
+        private CharSequence mText;
+        private int mPos, mEnd;
+        private double mDouble;
+        private long mLong;
+
+        public int parse(CharSequence text, int start, int end)
+        {
+            mText = text;
+            mPos = start;
+            mEnd = end;
+            try {
+                for (int field = 0; field < NUM_FIELDS; field++) {
+                    errField = field;
+                    final int err = (field < 2) ? _decimal() : _integer(field == 3 ? Long.MAX_VALUE / 1000 : Integer.MAX_VALUE);
+                    if (err != OK) {
+                        return err;
+                    }
+                    switch (field) {
+                        case 0 -> lat = mDouble;
+                        case 1 -> lon = mDouble;
+                        case 2 -> alt_m = (int) mLong;
+                        case 3 -> utc = mLong * 1000;
+                        case 4 -> v_kmh = (int) mLong;
+                        case 5 -> acc_m = (int) mLong;
+                        default -> bat_pct = (int) mLong;
+                    }
+                    // fields are separated by exactly one comma, last one runs to the end
+                    if (field < NUM_FIELDS - 1) {
+                        if (mPos >= mEnd || mText.charAt(mPos) != ',') {
+                            return ERR_NUM_FIELDS;
+                        }
+                        mPos++;
+                    }
+                    else if (mPos != mEnd) {
+                        return mText.charAt(mPos) == ',' ? ERR_NUM_FIELDS : ERR_NOT_A_NUMBER;
+                    }
+                }
+                return OK;
+            }
+            finally {
+                mText = null;
+            }
+        }
+
+        public GpsData toGpsData()
+        {
+            return new GpsData(lat, lon, alt_m, utc, v_kmh, acc_m, bat_pct);
+        }
+
+        private boolean _negative()
+        {
+            if (mPos < mEnd && (mText.charAt(mPos) == '-' || mText.charAt(mPos) == '+')) {
+                return mText.charAt(mPos++) == '-';
+            }
+            return false;
+        }
+
+        private int _integer(long max)
+        {
+            final boolean neg = _negative();
+            long val = 0;
+            final int digitsStart = mPos;
+            for (; mPos < mEnd; mPos++) {
+                final char c = mText.charAt(mPos);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                val = val * 10 + (c - '0');
+                if (val > max + (neg ? 1 : 0)) {
+                    return ERR_OUT_OF_RANGE;
+                }
+            }
+            if (mPos == digitsStart) {
+                return ERR_NOT_A_NUMBER;
+            }
+            mLong = neg ? -val : val;
+            return OK;
+        }
+
+        private int _decimal()
+        {
+            final int fieldStart = mPos;
+            final boolean neg = _negative();
+            long mantissa = 0;
+            int digits = 0, fracDigits = 0;
+            boolean point = false, anyDigit = false;
+            for (; mPos < mEnd; mPos++) {
+                final char c = mText.charAt(mPos);
+                if (c == '.' && !point) {
+                    point = true;
+                    continue;
+                }
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                anyDigit = true;
+                if (mantissa != 0 || c != '0') {
+                    digits++; //leading zeros do not count
+                }
+                if (digits <= MAX_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (point) {
+                        fracDigits++;
+                    }
+                }
+            }
+            if (!anyDigit || (mPos < mEnd && mText.charAt(mPos) != ',')
+                    || digits > MAX_DIGITS || fracDigits >= POW10.length) {
+                return _decimalSlow(fieldStart);
+            }
+            // both exact, so the division is correctly rounded like parseDouble
+            final double val = mantissa / POW10[fracDigits];
+            mDouble = neg ? -val : val;
+            return OK;
+        }
 
-               For UTC we round it to seconds
-             */
-            return String.format(SmsLoc_Common.LOCALE, "%.4f,%.4f,%d,%d,%d,%d,%d",
-                    lat, lon, alt_m, utc / 1000, v_kmh, acc_m, bat_pct);
+        /**
+         * Not from toSmsText (full double precision, exponent, whitespace, NaN...).
+         * The whole field goes to the JDK, so we accept what parseDouble always accepted
+         */
+        private int _decimalSlow(int fieldStart)
+        {
+            mPos = fieldStart;
+            while (mPos < mEnd && mText.charAt(mPos) != ',') {
+                mPos++;
+            }
+            try {
+                mDouble = Double.parseDouble(mText.subSequence(fieldStart, mPos).toString());
+                return OK;
+            }
+            catch (NumberFormatException e) {
+                return ERR_NOT_A_NUMBER;
+            }
         }
-        catch (NullPointerException e) {return SmsLoc_Common.Consts.GPS_DATA_INVALID_ERR_STR;}
     }
 
     //todo we probably want all of this for the location to be valid
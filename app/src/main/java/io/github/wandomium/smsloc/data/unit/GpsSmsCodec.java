@@ -0,0 +1,200 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.data.unit;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact text encoding of one or more fixes for a single SMS, sent after
+ * SmsUtils.RESPONSE_CODE_COMPACT.
+ * <p>
+ * Format: version char, then for each point base64 VLQ numbers (5 data bits and a
+ * continuation bit per char, alphabet is in the GSM 7-bit default set) of
+ *      lat, lon  - zigzag delta of fixed point with SMS precision (4 decimals)
+ *      utc       - zigzag delta in s, first point relative to UTC_EPOCH_S
+ *      alt_m     - zigzag delta
+ *      v_kmh, acc_m
+ *      bat_pct   - in steps of BAT_STEP_PCT
+ * The first point is delta encoded from 0. A single fix takes ~20 chars instead of ~45
+ * for GpsData.toSmsText and every following one ~10.
+ * <p>
+ * Only valid data is encoded, errors are still sent as text after RESPONSE_CODE.
+ */
+public final class GpsSmsCodec
+{
+    /** Requesters advertise the highest version they read, they must read all below it as well */
+    public static final int VERSION = 1;
+
+    private static final double COORD_SCALE = 1e4; //see GpsData.toSmsText
+    private static final long UTC_EPOCH_S = 1704067200L; //2024-01-01T00:00:00Z
+    private static final int BAT_STEP_PCT = 5;
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final int[] ALPHABET_IDX = new int[128];
+    static {
+        Arrays.fill(ALPHABET_IDX, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            ALPHABET_IDX[ALPHABET[i]] = i;
+        }
+    }
+    private static final int VLQ_BITS = 5;
+    private static final int VLQ_CONT = 1 << VLQ_BITS;
+    private static final int VLQ_MASK = VLQ_CONT - 1;
+
+    private GpsSmsCodec() {}
+
+    /**
+     * Appends the version and as many points, in the given order, as fit into maxLen
+     * chars of sb. Invalid points are skipped.
+     * @return number of points from the list that were consumed (appended or skipped)
+     */
+    public static int append(@NonNull StringBuilder sb, @NonNull List<GpsData> points, int maxLen)
+    {
+        if (sb.length() >= maxLen) {
+            return 0;
+        }
+        final int start = sb.length();
+        sb.append(ALPHABET[VERSION]);
+
+        long prevLat = 0, prevLon = 0, prevUtc = UTC_EPOCH_S, prevAlt = 0;
+        int consumed = 0;
+        for (GpsData p : points) {
+            if (!p.dataValid()) {
+                consumed++;
+                continue;
+            }
+            final int pointStart = sb.length();
+            final long lat = Math.round(p.lat * COORD_SCALE);
+            final long lon = Math.round(p.lon * COORD_SCALE);
+            final long utc = p.utc / 1000;
+            _putZigzag(sb, lat - prevLat);
+            _putZigzag(sb, lon - prevLon);
+            _putZigzag(sb, utc - prevUtc);
+            _putZigzag(sb, p.alt_m - prevAlt);
+            _putVlq(sb, p.v_kmh);
+            _putVlq(sb, p.acc_m);
+            _putVlq(sb, (p.bat_pct + BAT_STEP_PCT / 2) / BAT_STEP_PCT);
+            if (sb.length() > maxLen) {
+                sb.setLength(pointStart);
+                break;
+            }
+            prevLat = lat;
+            prevLon = lon;
+            prevUtc = utc;
+            prevAlt = p.alt_m;
+            consumed++;
+        }
+        if (sb.length() == start + 1) {
+            sb.setLength(start); //nothing fit, do not leave a lone version char
+        }
+        return consumed;
+    }
+
+    /** Single fix, invalid data appends nothing */
+    public static StringBuilder append(@NonNull StringBuilder sb, @NonNull GpsData point)
+    {
+        append(sb, List.of(point), Integer.MAX_VALUE);
+        return sb;
+    }
+
+    /**
+     * Points are returned sorted by utc, the order they were sent in is not kept.
+     * @throws IllegalArgumentException on unknown version or malformed text
+     */
+    @NonNull
+    public static GpsTrack decode(@NonNull CharSequence text, int start)
+    {
+        final Decoder dec = new Decoder(text, start);
+        if (start >= text.length() || dec.getDigit() != VERSION) {
+            throw new IllegalArgumentException("Unknown SMS encoding");
+        }
+
+        final GpsTrack track = new GpsTrack();
+        long lat = 0, lon = 0, utc = UTC_EPOCH_S, alt = 0;
+        while (dec.pos < text.length()) {
+            lat += dec.getZigzag();
+            lon += dec.getZigzag();
+            utc += dec.getZigzag();
+            alt += dec.getZigzag();
+            final long v = dec.getVlq();
+            final long acc = dec.getVlq();
+            final long bat = dec.getVlq() * BAT_STEP_PCT;
+            if (v > Integer.MAX_VALUE || acc > Integer.MAX_VALUE || bat > Integer.MAX_VALUE
+                    || alt > Integer.MAX_VALUE || alt < Integer.MIN_VALUE) {
+                throw new IllegalArgumentException("Value out of range");
+            }
+            track.add(lat / COORD_SCALE, lon / COORD_SCALE,
+                    (int) alt, utc * 1000, (int) v, (int) acc, (int) bat);
+        }
+        return track;
+    }
+
+    private static void _putZigzag(StringBuilder sb, long v) { _putVlq(sb, (v << 1) ^ (v >> 63)); }
+
+    private static void _putVlq(StringBuilder sb, long v)
+    {
+        while ((v & ~(long) VLQ_MASK) != 0) {
+            sb.append(ALPHABET[(int) (v & VLQ_MASK) | VLQ_CONT]);
+            v >>>= VLQ_BITS;
+        }
+        sb.append(ALPHABET[(int) v]);
+    }
+
+    private static final class Decoder
+    {
+        final CharSequence text;
+        int pos;
+
+        Decoder(CharSequence text, int pos) { this.text = text; this.pos = pos; }
+
+        int getDigit()
+        {
+            if (pos >= text.length()) {
+                throw new IllegalArgumentException("Truncated SMS");
+            }
+            final char c = text.charAt(pos++);
+            final int digit = c < ALPHABET_IDX.length ? ALPHABET_IDX[c] : -1;
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid char in SMS: " + c);
+            }
+            return digit;
+        }
+
+        long getZigzag()
+        {
+            final long v = getVlq();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long getVlq()
+        {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += VLQ_BITS) {
+                final int digit = getDigit();
+                v |= (long) (digit & VLQ_MASK) << shift;
+                if ((digit & VLQ_CONT) == 0) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("Malformed number in SMS");
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.data.unit;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Chronologically sorted track, stored column wise in primitive arrays.
+ * <p>
+ * Appending in order is amortized O(1), out of order points are placed with a binary
+ * search on utc and a point with an utc that is already in the track is ignored.
+ * <p>
+ * share() is O(1): the returned track reads the same columns and copies them on its
+ * first change. This works because the owner only ever writes past the end of what it
+ * shared (append) or moves to new columns (insert in the middle, growth).
+ */
+public final class GpsTrack implements Iterable<GpsData>
+{
+    private static final int MIN_CAPACITY = 8;
+
+    private double[] mLat, mLon;
+    private long[]   mUtc;
+    private int[]    mAlt, mSpeed, mAcc, mBat;
+    private int mSize = 0;
+    private boolean mOwnsColumns = true;
+
+    public GpsTrack()
+    {
+        this(0);
+    }
+    public GpsTrack(int capacity)
+    {
+        _allocate(capacity);
+    }
+
+    private GpsTrack(GpsTrack other)
+    {
+        mLat = other.mLat; mLon = other.mLon; mUtc = other.mUtc;
+        mAlt = other.mAlt; mSpeed = other.mSpeed; mAcc = other.mAcc; mBat = other.mBat;
+        mSize = other.mSize;
+        mOwnsColumns = false;
+    }
+
+    /** @return track with the same points, changing either one does not affect the other */
+    @NonNull
+    public GpsTrack share()
+    {
+        return new GpsTrack(this);
+    }
+
+    public int size()        { return mSize; }
+    public boolean isEmpty() { return mSize == 0; }
+
+    public double lat(int i)  { _check(i); return mLat[i]; }
+    public double lon(int i)  { _check(i); return mLon[i]; }
+    public long   utc(int i)  { _check(i); return mUtc[i]; }
+    public int    alt(int i)  { _check(i); return mAlt[i]; }
+    public int    speed(int i){ _check(i); return mSpeed[i]; }
+    public int    acc(int i)  { _check(i); return mAcc[i]; }
+    public int    bat(int i)  { _check(i); return mBat[i]; }
+
+    /** Allocates, use the column getters in loops that do not need GpsData */
+    @NonNull
+    public GpsData get(int i)
+    {
+        _check(i);
+        return new GpsData(mLat[i], mLon[i], mAlt[i], mUtc[i], mSpeed[i], mAcc[i], mBat[i]);
+    }
+
+    public GpsData last()
+    {
+        return mSize == 0 ? null : get(mSize - 1);
+    }
+
+    /** @return index of the point with this utc or -(insertion point) - 1 */
+    public int indexOf(long utc)
+    {
+        return Arrays.binarySearch(mUtc, 0, mSize, utc);
+    }
+
+    /** @return false if a point with the same utc is already in the track */
+    public boolean add(@NonNull GpsData p)
+    {
+        return add(p.lat, p.lon, p.alt_m, p.utc, p.v_kmh, p.acc_m, p.bat_pct);
+    }
+
+    public boolean add(double lat, double lon, int alt, long utc, int speed, int acc, int bat)
+    {
+        if (mSize == 0 || utc > mUtc[mSize - 1]) {
+            // normal case, locations from one address come in order
+            if (!mOwnsColumns || mSize == mLat.length) {
+                _resize(Math.max(MIN_CAPACITY, mSize * 2));
+            }
+            _set(mSize++, lat, lon, alt, utc, speed, acc, bat);
+            return true;
+        }
+
+        final int idx = indexOf(utc);
+        if (idx >= 0) {
+            return false;
+        }
+        // always new columns, shared copies may still be reading the old ones
+        final int at = -idx - 1;
+        final GpsTrack old = new GpsTrack(this);
+        _allocate(Math.max(MIN_CAPACITY, mSize + 1 + mSize / 2));
+        _copy(old, 0, this, 0, at);
+        _copy(old, at, this, at + 1, mSize - at);
+        _set(at, lat, lon, alt, utc, speed, acc, bat);
+        mSize++;
+        return true;
+    }
+
+    @NonNull
+    @Override
+    public Iterator<GpsData> iterator()
+    {
+        return new Iterator<>() {
+            private final GpsTrack mTrack = share(); //not affected by later changes
+            private int mNext = 0;
+
+            @Override
+            public boolean hasNext() { return mNext < mTrack.mSize; }
+
+            @Override
+            public GpsData next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return mTrack.get(mNext++);
+            }
+        };
+    }
+
+    private void _check(int i)
+    {
+        if (i < 0 || i >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " + mSize);
+        }
+    }
+
+    private void _set(int i, double lat, double lon, int alt, long utc, int speed, int acc, int bat)
+    {
+        mLat[i] = lat; mLon[i] = lon; mUtc[i] = utc;
+        mAlt[i] = alt; mSpeed[i] = speed; mAcc[i] = acc; mBat[i] = bat;
+    }
+
+    private void _allocate(int capacity)
+    {
+        mLat = new double[capacity]; mLon = new double[capacity]; mUtc = new long[capacity];
+        mAlt = new int[capacity]; mSpeed = new int[capacity]; mAcc = new int[capacity]; mBat = new int[capacity];
+        mOwnsColumns = true;
+    }
+
+    private void _resize(int capacity)
+    {
+        mLat = Arrays.copyOf(mLat, capacity); mLon = Arrays.copyOf(mLon, capacity);
+        mUtc = Arrays.copyOf(mUtc, capacity);
+        mAlt = Arrays.copyOf(mAlt, capacity); mSpeed = Arrays.copyOf(mSpeed, capacity);
+        mAcc = Arrays.copyOf(mAcc, capacity); mBat = Arrays.copyOf(mBat, capacity);
+        mOwnsColumns = true;
+    }
+
+    private static void _copy(GpsTrack src, int srcPos, GpsTrack dst, int dstPos, int len)
+    {
+        System.arraycopy(src.mLat, srcPos, dst.mLat, dstPos, len);
+        System.arraycopy(src.mLon, srcPos, dst.mLon, dstPos, len);
+        System.arraycopy(src.mUtc, srcPos, dst.mUtc, dstPos, len);
+        System.arraycopy(src.mAlt, srcPos, dst.mAlt, dstPos, len);
+        System.arraycopy(src.mSpeed, srcPos, dst.mSpeed, dstPos, len);
+        System.arraycopy(src.mAcc, srcPos, dst.mAcc, dstPos, len);
+        System.arraycopy(src.mBat, srcPos, dst.mBat, dstPos, len);
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.data.unit;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Compact binary encoding of a GpsTrack.
+ * <p>
+ * Format: version byte, varint number of points, then for each point zigzag varint
+ * deltas from the previous point of
+ *      lat, lon  - fixed point with SMS precision (4 decimals)
+ *      utc       - ms
+ * followed by zigzag varints of alt_m, v_kmh, acc_m, bat_pct.
+ * A typical point takes ~12 bytes instead of ~100 as a json object.
+ * <p>
+ * Points come from SMS so nothing is lost with the fixed point coordinates.
+ */
+public final class GpsTrackCodec
+{
+    private static final byte VERSION = 1;
+    private static final double COORD_SCALE = 1e4; //see GpsData.toSmsText
+
+    private GpsTrackCodec() {}
+
+    @NonNull
+    public static byte[] encode(@NonNull GpsTrack track)
+    {
+        final Encoder enc = new Encoder(8 + track.size() * 14);
+        enc.buf[enc.len++] = VERSION;
+        enc.putVarint(track.size());
+
+        long prevLat = 0, prevLon = 0, prevUtc = 0;
+        for (int i = 0; i < track.size(); i++) {
+            final long lat = Math.round(track.lat(i) * COORD_SCALE);
+            final long lon = Math.round(track.lon(i) * COORD_SCALE);
+            final long utc = track.utc(i);
+            enc.putZigzag(lat - prevLat);
+            enc.putZigzag(lon - prevLon);
+            enc.putZigzag(utc - prevUtc);
+            enc.putZigzag(track.alt(i));
+            enc.putZigzag(track.speed(i));
+            enc.putZigzag(track.acc(i));
+            enc.putZigzag(track.bat(i));
+            prevLat = lat;
+            prevLon = lon;
+            prevUtc = utc;
+        }
+        return Arrays.copyOf(enc.buf, enc.len);
+    }
+
+    /** @throws IllegalArgumentException on unknown version or truncated data */
+    @NonNull
+    public static GpsTrack decode(@NonNull byte[] data)
+    {
+        final Decoder dec = new Decoder(data);
+        if (data.length == 0 || data[dec.pos++] != VERSION) {
+            throw new IllegalArgumentException("Unknown track encoding");
+        }
+        final long num = dec.getVarint();
+        // every point takes at least 7 bytes, do not trust the count blindly
+        if (num < 0 || num > (data.length - dec.pos) / 7) {
+            throw new IllegalArgumentException("Invalid number of track points: " + num);
+        }
+
+        final GpsTrack track = new GpsTrack((int) num);
+        long lat = 0, lon = 0, utc = 0;
+        for (int i = 0; i < num; i++) {
+            lat += dec.getZigzag();
+            lon += dec.getZigzag();
+            utc += dec.getZigzag();
+            track.add(lat / COORD_SCALE, lon / COORD_SCALE,
+                    (int) dec.getZigzag(), utc, (int) dec.getZigzag(), (int) dec.getZigzag(), (int) dec.getZigzag());
+        }
+        return track;
+    }
+
+    /**
+     * Used on SmsLocData.gpsDataPoints. Writes the track as a base64 string of the binary
+     * encoding, reads both that and the old array of json objects.
+     */
+    public static final class JsonAdapter extends TypeAdapter<GpsTrack>
+    {
+        @Override
+        public void write(JsonWriter out, GpsTrack track) throws IOException
+        {
+            if (track == null) {
+                out.nullValue();
+                return;
+            }
+            out.value(Base64.getEncoder().encodeToString(encode(track)));
+        }
+
+        @Override
+        public GpsTrack read(JsonReader in) throws IOException
+        {
+            final JsonToken token = in.peek();
+            if (token == JsonToken.NULL) {
+                in.nextNull();
+                return new GpsTrack();
+            }
+            if (token == JsonToken.BEGIN_ARRAY) {
+                //files written before the binary encoding, array of GpsData objects
+                final GpsData[] points = (new Gson()).fromJson(in, GpsData[].class);
+                final GpsTrack track = new GpsTrack(points == null ? 0 : points.length);
+                if (points != null) {
+                    for (GpsData p : points) {
+                        track.add(p);
+                    }
+                }
+                return track;
+            }
+            try {
+                return decode(Base64.getDecoder().decode(in.nextString()));
+            }
+            catch (IllegalArgumentException e) {
+                throw new JsonSyntaxException("Corrupted track: " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class Encoder
+    {
+        byte[] buf;
+        int len = 0;
+
+        Encoder(int capacity) { buf = new byte[capacity]; }
+
+        void putZigzag(long v) { putVarint((v << 1) ^ (v >> 63)); }
+
+        void putVarint(long v)
+        {
+            if (len + 10 > buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2 + 10);
+            }
+            while ((v & ~0x7FL) != 0) {
+                buf[len++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+    }
+
+    private static final class Decoder
+    {
+        final byte[] buf;
+        int pos = 0;
+
+        Decoder(byte[] buf) { this.buf = buf; }
+
+        long getZigzag()
+        {
+            final long v = getVarint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long getVarint()
+        {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= buf.length) {
+                    throw new IllegalArgumentException("Truncated track");
+                }
+                final byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+    }
+}
@@ -20,12 +20,12 @@ import androidx.annotation.NonNull;
 
 import io.github.wandomium.smsloc.data.base.DataUnit;
 import io.github.wandomium.smsloc.data.base.DataUnitFactory;
+import io.github.wandomium.smsloc.data.base.DataUnitOp;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonParseException;
-
-import java.util.ArrayList;
-import java.util.Arrays;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.annotations.SerializedName;
 
 /**
  *  stored per address */
@@ -36,7 +36,8 @@ public final class SmsLocData implements Cloneable, DataUnit<SmsLocData>
     private long lastReqTime, lastRespTime = 0;
     private boolean lastRespValid = false;
     private int numSentReq, numResponses, numReceivedReq = 0;
-    private GpsData[] gpsDataPoints = new GpsData[0]; //private, keep sorted chronologically
+    @JsonAdapter(value = GpsTrackCodec.JsonAdapter.class, nullSafe = false) //binary, see GpsTrackCodec
+    private GpsTrack gpsDataPoints = new GpsTrack(); //private, sorted chronologically
 
     public SmsLocData(String addr) {
         this.addr = addr;
@@ -49,7 +50,7 @@ public final class SmsLocData implements Cloneable, DataUnit<SmsLocData>
                 return null;
             }
             // Others are primitives and initialized to 0/false if missing which is ok
-            if (retval.gpsDataPoints == null) { retval.gpsDataPoints = new GpsData[0]; }
+            if (retval.gpsDataPoints == null) { retval.gpsDataPoints = new GpsTrack(); }
             return retval;
         }
         catch (JsonParseException e)  { return null; }
@@ -65,11 +66,15 @@ public final class SmsLocData implements Cloneable, DataUnit<SmsLocData>
     public int numReceivedReq()         { return numReceivedReq; }
     public int numResponses()           { return numResponses; }
 
-    public void requestSent()     { numSentReq++; lastReqTime = System.currentTimeMillis(); }
+    public void requestSent()     { _requestSent(System.currentTimeMillis()); }
     public void requestReceived() { numReceivedReq++; }
-    public void responseReceived(GpsData location) {
+    public void responseReceived(GpsData location) { _responseReceived(System.currentTimeMillis(), location); }
+    public void trailReceived(GpsTrack locations)  { _trailReceived(System.currentTimeMillis(), locations); }
+
+    private void _requestSent(long ts) { numSentReq++; lastReqTime = ts; }
+    private void _responseReceived(long ts, GpsData location) {
         numResponses++;
-        lastRespTime = System.currentTimeMillis();
+        lastRespTime = ts;
 
         if (location == null || !location.dataValid()) {
             lastRespValid = false;
@@ -80,6 +85,24 @@ public final class SmsLocData implements Cloneable, DataUnit<SmsLocData>
         }
     }
 
+    /** One response with several locations, the response is valid if any of them is */
+    private void _trailReceived(long ts, GpsTrack locations) {
+        numResponses++;
+        lastRespTime = ts;
+        lastRespValid = false;
+
+        if (locations == null) {
+            return;
+        }
+        for (int i = 0; i < locations.size(); i++) {
+            final GpsData location = locations.get(i);
+            if (location.dataValid()) {
+                _addLocation(location);
+                lastRespValid = true;
+            }
+        }
+    }
+
     /* TODO find a better name, there might be requests pending even if the
        one was just received
      */
@@ -101,36 +124,23 @@ public final class SmsLocData implements Cloneable, DataUnit<SmsLocData>
     }
 
     public boolean hasLocationData() {
-        return gpsDataPoints.length != 0;
+        return !gpsDataPoints.isEmpty();
     }
+    /** O(1), the returned track is not affected by later changes to this one and vice versa */
     @NonNull
-    public GpsData[] getLocationData()  {
-        //array contents themselves are immutable which is all we care about really
-        return gpsDataPoints.clone();
+    public GpsTrack getLocationData()  {
+        return gpsDataPoints.share();
     }
     public GpsData getLastValidLocation() {
-        return (gpsDataPoints.length == 0) ?
-             null : gpsDataPoints[gpsDataPoints.length - 1];
+        return gpsDataPoints.last();
     }
 
     private void _addLocation(@NonNull GpsData gpsData) {
-
-        if (gpsDataPoints.length == 0) {
-            gpsDataPoints = new GpsData[]{gpsData};
-        }
-        else {
-            //This is being extra careful, normally locations from a
-            //specific address will have ascending timestamps
-            //I guess the only problem could be if the sender is without
-            //a network for some time. And even texts might go out in the
-            //correct order - probably depends on the app
-            //TODO check
-            ArrayList<GpsData>
-                    tmpList = new ArrayList<>(Arrays.asList(gpsDataPoints));
-            tmpList.add(gpsData);
-            tmpList.sort(new GpsData.SortByGpsUtc(1));
-            gpsDataPoints = tmpList.toArray(new GpsData[0]);
-        }
+        //Normally locations from a specific address come in with ascending timestamps,
+        //but a sender without network can deliver them out of order - the track sorts them.
+        //Same fix delivered twice (resent sms or journal replayed over a snapshot
+        //that already contains it) is ignored by the track
+        gpsDataPoints.add(gpsData);
     }
 
 //////////
@@ -156,8 +166,8 @@ public final class SmsLocData implements Cloneable, DataUnit<SmsLocData>
             throw new AssertionError(); // we should never get here
         }
 
-        //array of immutable objects
-        copy.gpsDataPoints = gpsDataPoints.clone();
+        //copy on write, see GpsTrack
+        copy.gpsDataPoints = gpsDataPoints.share();
         return copy;
     }
 
@@ -167,4 +177,58 @@ public final class SmsLocData implements Cloneable, DataUnit<SmsLocData>
             return new SmsLocData(id);
         }
     }
+
+    /** Journal record. Names are kept short because there is one of these per line
+     * in the journal file */
+    public final static class Op implements DataUnitOp<SmsLocData>
+    {
+        private static final int REQUEST_SENT      = 0;
+        private static final int REQUEST_RECEIVED  = 1;
+        private static final int RESPONSE_RECEIVED = 2;
+        private static final int TRAIL_RECEIVED    = 3;
+
+        @SerializedName("a") private final String addr;
+        @SerializedName("o") private final int op;
+        @SerializedName("t") private final long ts;
+        @SerializedName("l") private final GpsData loc;
+        @JsonAdapter(GpsTrackCodec.JsonAdapter.class)
+        @SerializedName("p") private final GpsTrack trail;
+
+        private Op(String addr, int op, GpsData loc) {
+            this(addr, op, loc, null);
+        }
+        private Op(String addr, int op, GpsData loc, GpsTrack trail) {
+            this.addr = addr;
+            this.op = op;
+            this.ts = System.currentTimeMillis();
+            this.loc = loc;
+            this.trail = trail;
+        }
+
+        public static Op requestSent(String addr)     { return new Op(addr, REQUEST_SENT, null); }
+        public static Op requestReceived(String addr) { return new Op(addr, REQUEST_RECEIVED, null); }
+        public static Op responseReceived(String addr, GpsData location) {
+            return new Op(addr, RESPONSE_RECEIVED, location);
+        }
+        /** Whole trail is applied and journaled as one op */
+        public static Op trailReceived(String addr, GpsTrack locations) {
+            return new Op(addr, TRAIL_RECEIVED, null, locations);
+        }
+
+        @Override
+        public String getId() {
+            return addr;
+        }
+
+        @Override
+        public void applyTo(SmsLocData unit) {
+            switch (op) {
+                case REQUEST_SENT      -> unit._requestSent(ts);
+                case REQUEST_RECEIVED  -> unit.requestReceived();
+                case RESPONSE_RECEIVED -> unit._responseReceived(ts, loc);
+                case TRAIL_RECEIVED    -> unit._trailReceived(ts, trail);
+                default -> {} //unknown record from a newer version, ignore
+            }
+        }
+    }
 }
@@ -56,6 +56,11 @@ public class SmsLoc_Common
         public static final String PEOPLE_DATA_FILENAME = BuildConfig.APPLICATION_ID + ".people";
         public static final String DAY_DATA_FILENAME = BuildConfig.APPLICATION_ID + ".data";
         public static final String LOG_FILENAME = BuildConfig.APPLICATION_ID + ".log";
+        public static final String MY_TRACK_FILENAME = BuildConfig.APPLICATION_ID + ".mytrack";
+        public static final String LAST_FIX_FILENAME = BuildConfig.APPLICATION_ID + ".lastfix";
+        public static final String FIX_TIME_FILENAME = BuildConfig.APPLICATION_ID + ".fixtime";
+        public static final String OUTBOX_FILENAME = BuildConfig.APPLICATION_ID + ".outbox";
+        public static final String RATE_LIMIT_FILENAME = BuildConfig.APPLICATION_ID + ".ratelimit";
 
         public static final String GPS_DATA_INVALID_ERR_STR = "GPS Data invalid";
         public static final String NOT_WHITELISTED_ERR_STR = "Not whitelisted";
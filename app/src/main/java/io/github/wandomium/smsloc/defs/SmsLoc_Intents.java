@@ -33,9 +33,18 @@ public class SmsLoc_Intents
     public static final String EXTRA_RETRY        = "RtryCnt";
     public static final String EXTRA_DEFOPT       = "Extra";
     public static final String EXTRA_WAKE_LOCK_ID = "WakeLockId";
+    public static final String EXTRA_COMPACT      = "Compact";
+    public static final String EXTRA_TRAIL_POINTS = "TrailPoints";
+    public static final String EXTRA_TRAIL_SINCE  = "TrailSince";
+    public static final String EXTRA_TRACK_INTERVAL = "TrackInterval";
+    public static final String EXTRA_TRACK_DURATION = "TrackDuration";
+    public static final String EXTRA_TRACK_MAX_SMS  = "TrackMaxSms";
+    public static final String EXTRA_TRACK_STOP     = "TrackStop";
+    public static final String EXTRA_REPLAY         = "Replay";
 
     public static final String ACTION_REQUEST_RCVD       = BuildConfig.APPLICATION_ID + ".intent.req_rcvd";
     public static final String ACTION_NEW_LOCATION       = BuildConfig.APPLICATION_ID + ".intent.new_location";
+    public static final String ACTION_NEW_TRAIL          = BuildConfig.APPLICATION_ID + ".intent.new_trail";
     public static final String ACTION_REQUEST_SENT       = BuildConfig.APPLICATION_ID + ".intent.req.sent";
     public static final String ACTION_RESPONSE_RCVD      = BuildConfig.APPLICATION_ID + ".intent.resp_rcvd";
     public static final String ACTION_DAY_DATA_CLR       = BuildConfig.APPLICATION_ID + ".intent.day_data_clr";
@@ -46,6 +55,7 @@ public class SmsLoc_Intents
     public static final String ACTION_LOG_UPDATED        = BuildConfig.APPLICATION_ID + ".intent.log_updated";
     public static final String ACTION_ERROR              = BuildConfig.APPLICATION_ID + ".intent.error";
     public static final String ACTION_SMS_SEND_FAIL      = BuildConfig.APPLICATION_ID + ".intent.sms_send_fail";
+    public static final String ACTION_HISTORY_RANGE      = BuildConfig.APPLICATION_ID + ".intent.history_range";
 
     //TODO update this
     public static android.content.Intent generateIntentWithAddr(Context ctx, final String addr, final String action)
@@ -36,13 +36,30 @@ public enum SmsLoc_Settings
     SHOW_BG_AUTOSTART_ALERT("show_bg_autostart_alert"),
     GPS_TIMEOUT("gps_timeout"),
     SMS_SUB_ID("sms_sub_id"),
+    HISTORY_RETENTION_DAYS("history_retention_days"),
+    TRACK_MOTION_AWARE("track_motion_aware"),
+    FRESH_FIX_MAX_AGE_S("fresh_fix_max_age_s"),
+    FRESH_FIX_MAX_ACC_M("fresh_fix_max_acc_m"),
+    GPS_TARGET_ACC_M("gps_target_acc_m"),
+    RATE_LIMIT_SENDER("rate_limit_sender"),
+    RATE_LIMIT_GLOBAL("rate_limit_global"),
     FIRST_RUN("is_first_run");
 
     public static final boolean IGNORE_WHITELIST_DEFAULT = true;
+    public static final boolean TRACK_MOTION_AWARE_DEFAULT = true;
     public static final int GPS_TIMEOUT_MIN = 1;
     public static final int GPS_TIMEOUT_MAX = 5;
     public static final int GPS_TIMEOUT_DEFAULT = GPS_TIMEOUT_MIN;
     public static final int SMS_SUB_ID_DEFAULT = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    public static final int HISTORY_RETENTION_DAYS_DEFAULT = 30;
+    // requests are answered with a cached fix within these limits, 0 age always waits for GPS
+    public static final int FRESH_FIX_MAX_AGE_S_DEFAULT = 120;
+    public static final int FRESH_FIX_MAX_ACC_M_DEFAULT = 50;
+    // GPS is stopped as soon as a fix is this accurate, otherwise the best one at timeout is used
+    public static final int GPS_TARGET_ACC_M_DEFAULT = 20;
+    // answered requests per hour, from one sender and from everyone. 0 = no limit
+    public static final int RATE_LIMIT_SENDER_DEFAULT = 12;
+    public static final int RATE_LIMIT_GLOBAL_DEFAULT = 60;
 
     private final String name;
     SmsLoc_Settings(final String name) { this.name = name;}
@@ -61,6 +78,10 @@ public enum SmsLoc_Settings
                 return context.getApplicationContext()
                         .getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE)
                         .getBoolean(name, defopt);
+            case TRACK_MOTION_AWARE:
+                return context.getApplicationContext()
+                        .getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE)
+                        .getBoolean(name, TRACK_MOTION_AWARE_DEFAULT);
             default:
                 // ERR
                 throw new ClassCastException();
@@ -82,6 +103,36 @@ public enum SmsLoc_Settings
                     context.getApplicationContext()
                         .getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE)
                             .getInt(name, SMS_SUB_ID_DEFAULT);
+            case HISTORY_RETENTION_DAYS:
+                return
+                    context.getApplicationContext()
+                        .getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE)
+                            .getInt(name, HISTORY_RETENTION_DAYS_DEFAULT);
+            case FRESH_FIX_MAX_AGE_S:
+                return
+                    context.getApplicationContext()
+                        .getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE)
+                            .getInt(name, FRESH_FIX_MAX_AGE_S_DEFAULT);
+            case FRESH_FIX_MAX_ACC_M:
+                return
+                    context.getApplicationContext()
+                        .getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE)
+                            .getInt(name, FRESH_FIX_MAX_ACC_M_DEFAULT);
+            case GPS_TARGET_ACC_M:
+                return
+                    context.getApplicationContext()
+                        .getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE)
+                            .getInt(name, GPS_TARGET_ACC_M_DEFAULT);
+            case RATE_LIMIT_SENDER:
+                return
+                    context.getApplicationContext()
+                        .getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE)
+                            .getInt(name, RATE_LIMIT_SENDER_DEFAULT);
+            case RATE_LIMIT_GLOBAL:
+                return
+                    context.getApplicationContext()
+                        .getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE)
+                            .getInt(name, RATE_LIMIT_GLOBAL_DEFAULT);
             default:
                 throw new ClassCastException();
         }
@@ -24,6 +24,7 @@ import io.github.wandomium.smsloc.data.unit.PersonData;
 import io.github.wandomium.smsloc.data.unit.SmsLocData;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Objects;
 
 public abstract class AMapTracksDisplay
@@ -74,6 +75,16 @@ public abstract class AMapTracksDisplay
             }
         }
     }
+    /** @param locations oldest first, see LocationHistory.query */
+    public void addTrack(@NonNull final String addr, @NonNull final List<GpsData> locations)
+    {
+        if (!locations.isEmpty()) {
+            IMapTrack track = _getOrCreateTrack(addr);
+            for (GpsData loc : locations) {
+                track.updateData(loc);
+            }
+        }
+    }
 
 
     /***** Internal *****/
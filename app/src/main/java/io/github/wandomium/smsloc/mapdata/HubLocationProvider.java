@@ -0,0 +1,100 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.mapdata;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationManager;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.core.location.LocationListenerCompat;
+
+import org.osmdroid.views.overlay.mylocation.IMyLocationConsumer;
+import org.osmdroid.views.overlay.mylocation.IMyLocationProvider;
+
+import io.github.wandomium.smsloc.LocationHub;
+
+/**
+ * Replaces osmdroid's GpsMyLocationProvider, so the map shares the app's location request
+ * instead of running its own. Uses GPS and network, same as GpsMyLocationProvider.
+ */
+public class HubLocationProvider implements IMyLocationProvider, LocationListenerCompat
+{
+    private static final String CLASS_TAG = HubLocationProvider.class.getSimpleName();
+
+    private static final long INTERVAL_MS = 1000;
+    /* Network fixes are ignored while we have a GPS fix this recent */
+    private static final long GPS_PREFERRED_MS = 20 * 1000;
+
+    private final LocationHub mHub;
+    private IMyLocationConsumer mConsumer;
+    private Location mLastFix;
+
+    public HubLocationProvider(Context ctx) {
+        mHub = LocationHub.getInstance(ctx);
+    }
+
+    @Override
+    public boolean startLocationProvider(IMyLocationConsumer myLocationConsumer)
+    {
+        mConsumer = myLocationConsumer;
+        boolean started = false;
+        for (String provider : new String[]{LocationManager.GPS_PROVIDER, LocationManager.NETWORK_PROVIDER}) {
+            try {
+                mHub.subscribe(provider, this, INTERVAL_MS);
+                started = true;
+            }
+            catch (SecurityException | IllegalArgumentException e) {
+                // network is missing on some ROMs
+                Log.d(CLASS_TAG, provider + " not available: " + e.getMessage());
+            }
+        }
+        return started;
+    }
+
+    @Override
+    public void stopLocationProvider()
+    {
+        mHub.unsubscribe(this);
+        mConsumer = null;
+    }
+
+    @Override
+    public Location getLastKnownLocation() {
+        return mLastFix;
+    }
+
+    @Override
+    public void destroy() {
+        stopLocationProvider();
+    }
+
+    @Override
+    public void onLocationChanged(@NonNull Location location)
+    {
+        if (LocationManager.NETWORK_PROVIDER.equals(location.getProvider()) && mLastFix != null
+                && LocationManager.GPS_PROVIDER.equals(mLastFix.getProvider())
+                && location.getTime() - mLastFix.getTime() < GPS_PREFERRED_MS) {
+            return;
+        }
+        mLastFix = location;
+        if (mConsumer != null) {
+            mConsumer.onLocationChanged(location, this);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package io.github.wandomium.smsloc.toolbox;
 import android.app.ForegroundServiceStartNotAllowedException;
 import android.app.Notification;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.IBinder;
@@ -10,10 +11,15 @@ import android.os.IBinder;
 import androidx.annotation.Nullable;
 import androidx.core.app.ServiceCompat;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import io.github.wandomium.smsloc.data.file.LogFile;
+import io.github.wandomium.smsloc.data.file.OutboxFile;
 import io.github.wandomium.smsloc.defs.SmsLoc_Common;
 
 public abstract class ABaseFgService<EntryDataT> extends Service
@@ -25,13 +31,19 @@ public abstract class ABaseFgService<EntryDataT> extends Service
     protected final String cStatusPrefix;
     protected final int cServiceType;
     protected final int cNotId;
+    /* gson type of the queue entry data, stored in the outbox */
+    protected final Class<EntryDataT> cDataClass;
+
+    /* Unfinished entries are replayed by a later instance, or after boot. Older ones are dropped */
+    public static final long OUTBOX_MAX_AGE_MS = Utils.DAY_2_MS;
 
-    protected ABaseFgService(String titlePx, String statusPx, int notifId, int sType) {
+    protected ABaseFgService(String titlePx, String statusPx, int notifId, int sType, Class<EntryDataT> dataClass) {
         super();
         this.cTitlePrefix  = titlePx;
         this.cStatusPrefix = statusPx;
         this.cNotId = notifId;
         this.cServiceType  = sType;
+        this.cDataClass = dataClass;
     }
 
     protected NotificationHandler mNotHandler;
@@ -40,6 +52,9 @@ public abstract class ABaseFgService<EntryDataT> extends Service
     public record QueueEntry<EntryDataT>(int startId, String addr, EntryDataT data){}
 
     protected LinkedBlockingQueue<QueueEntry<EntryDataT>> mQueue;
+    /* Outbox id of every entry that is queued or being processed. Main thread only */
+    private final IdentityHashMap<QueueEntry<EntryDataT>, Long> mOutboxIds = new IdentityHashMap<>();
+    private boolean mOutboxReplayed = false;
 
     public record ProcessResult(String okStr, String failStr){
         String getString(boolean resultOK) { return resultOK ? okStr : failStr;}
@@ -60,7 +75,8 @@ public abstract class ABaseFgService<EntryDataT> extends Service
     public void onDestroy() {
         if (mQueue != null) {
             // if queue is not empty, some stuff failed to send
-            // we were probably shut down by the system before action was completed
+            // we were probably shut down by the system before action was completed.
+            // The entries stay in the outbox, the next start of the service sends them
             if (!mQueue.isEmpty()) {
                 ArrayList<String> unsent = new ArrayList<>(mQueue.size());
                 QueueEntry<EntryDataT> entry;
@@ -68,7 +84,7 @@ public abstract class ABaseFgService<EntryDataT> extends Service
                     unsent.add(entry.addr);
                 }
                 mNotHandler.createAndPostNotification(
-                    "Failed to send SMS", unsent.toString(), "Service stopped by system"
+                    "Failed to send SMS", unsent.toString(), "Service stopped by system, will retry on next start"
                 );
             }
         }
@@ -85,6 +101,8 @@ public abstract class ABaseFgService<EntryDataT> extends Service
     public IBinder onBind(Intent intent) { return null; }
 
     protected void onStartFailed(QueueEntry<EntryDataT> qEntry, final String reason) {
+        // reported, it is not retried
+        _ackOutbox(qEntry);
         mNotHandler.createAndPostNotification(
     cTitlePrefix + Utils.getDisplayName(this, qEntry.addr),
          cStatusPrefix + "start FAILED", reason
@@ -97,6 +115,93 @@ public abstract class ABaseFgService<EntryDataT> extends Service
     }
 
     protected boolean enqueueEntry(QueueEntry<EntryDataT> qEntry) {
+        return _enqueueEntry(qEntry, null);
+    }
+
+    /** @param outboxId null for new entries, they are added to the outbox */
+    private boolean _enqueueEntry(QueueEntry<EntryDataT> qEntry, Long outboxId) {
+        final OutboxFile OUTBOX = OutboxFile.getInstance(this);
+        mOutboxIds.put(qEntry, outboxId != null ? outboxId :
+                OUTBOX.add(getClass().getName(), qEntry.addr, new Gson().toJson(qEntry.data, cDataClass)));
+        OUTBOX.writeFileAsync();
+
+        if (!enterForeground(qEntry)) {
+            return false;
+        }
+
+        // we are good to go
+        if (!mQueue.offer(qEntry)) {
+            // should really not get here in normal operation
+            // TODO: limit queue size?
+            onStartFailed(qEntry, "queue full");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queues what an earlier instance of this service did not finish, before the current start
+     * is handled. Only the first call of an instance does anything.
+     * Entries are queued with startId, all of them finish together with the current start.
+     */
+    protected void replayOutbox(int startId) {
+        if (mOutboxReplayed) {
+            return;
+        }
+        mOutboxReplayed = true;
+
+        final OutboxFile OUTBOX = OutboxFile.getInstance(this);
+        final LogFile LOGFILE = LogFile.getInstance(this);
+        final long now = System.currentTimeMillis();
+        for (OutboxFile.Entry entry : OUTBOX.getPending(getClass().getName())) {
+            EntryDataT data = null;
+            try {
+                data = new Gson().fromJson(entry.data(), cDataClass);
+            }
+            catch (JsonParseException e) {
+                LOGFILE.addLogEntry("ERROR: Corrupted outbox entry: " + e.getMessage());
+            }
+            if (data == null || now - entry.utc() > OUTBOX_MAX_AGE_MS) {
+                OUTBOX.ack(entry.id());
+                LOGFILE.addLogEntry(cTitlePrefix + Utils.getDisplayName(this, entry.addr()) + ": dropped unsent from "
+                        + Utils.msToStr(entry.utc()));
+                continue;
+            }
+            LOGFILE.addLogEntry(cTitlePrefix + Utils.getDisplayName(this, entry.addr()) + ": resuming unsent from "
+                    + Utils.msToStr(entry.utc()));
+            _enqueueEntry(new QueueEntry<>(startId, entry.addr(), onReplay(data)), entry.id());
+        }
+        OUTBOX.writeFileAsync();
+    }
+
+    /** Data of an entry as it was stored, adjust what is not valid in a new process */
+    protected EntryDataT onReplay(EntryDataT data) {
+        return data;
+    }
+
+    /**
+     * Start with SmsLoc_Intents.EXTRA_REPLAY found nothing to do. It was started with
+     * startForegroundService, so foreground has to be entered before stopping
+     */
+    protected void stopAfterEmptyReplay(int startId) {
+        try {
+            ServiceCompat.startForeground(this, cNotId, mNotHandler.createOngoigNotification(
+                    cTitlePrefix, "nothing to resend", null), cServiceType);
+            stopForeground(STOP_FOREGROUND_REMOVE);
+        }
+        catch (Exception e) {
+            LogFile.getInstance(this).addLogEntry(_getExceptionString(e));
+        }
+        stopSelf(startId);
+    }
+
+    /** Services with unfinished entries in the outbox, for SmsLoc_Intents.EXTRA_REPLAY starts */
+    public static ArrayList<String> getOutboxServices(Context ctx) {
+        return new ArrayList<>(OutboxFile.getInstance(ctx).getPendingServices(OUTBOX_MAX_AGE_MS));
+    }
+
+    /** Calls onStartFailed for qEntry if the service could not be started in foreground */
+    protected boolean enterForeground(QueueEntry<EntryDataT> qEntry) {
         if (mServiceNotification == null) {
             // create a dummy notification
             mServiceNotification = mNotHandler.createOngoigNotification(
@@ -115,31 +220,58 @@ public abstract class ABaseFgService<EntryDataT> extends Service
             LogFile.getInstance(this).addLogEntry(_getExceptionString(e));
             return false;
         }
-
-        // we are good to go
-        if (!mQueue.offer(qEntry)) {
-            // should really not get here in normal operation
-            // TODO: limit queue size?
-            onStartFailed(qEntry, "queue full");
-            return false;
-        }
         return true;
     }
 
+    /** Service has work outside the queue, do not leave foreground when the queue is drained */
+    protected boolean stayInForeground() {
+        return false;
+    }
+
+    /**
+     * Entries that would get the same response are processed only once, the duplicates
+     * are just finished with onProcessEntryDone. Default: one response per address
+     */
+    protected boolean isSameResponse(QueueEntry<EntryDataT> a, QueueEntry<EntryDataT> b) {
+        return a.addr.equals(b.addr);
+    }
+
     protected void drainQueue(final ProcessResult processResult, final String detail)
     {
         while(mQueue != null && !mQueue.isEmpty()) {
             // drain the queue
-            final int numEntries = mQueue.size();
-            ArrayList<QueueEntry<EntryDataT>> entries = new ArrayList<>(numEntries);
+            ArrayList<QueueEntry<EntryDataT>> entries = new ArrayList<>(mQueue.size());
             mQueue.drainTo(entries);
 
+            // the first of the duplicates stays, it has the oldest startId
+            final ArrayList<QueueEntry<EntryDataT>> duplicates = new ArrayList<>();
+            for (int i = entries.size() - 1; i > 0; i--) {
+                for (int j = 0; j < i; j++) {
+                    if (isSameResponse(entries.get(j), entries.get(i))) {
+                        duplicates.add(entries.remove(i));
+                        break;
+                    }
+                }
+            }
+            if (!duplicates.isEmpty()) {
+                final LogFile LOGFILE = LogFile.getInstance(this);
+                for (QueueEntry<EntryDataT> qEntry : duplicates) {
+                    _ackOutbox(qEntry);
+                    LOGFILE.addLogEntry(Utils.getDisplayName(this, qEntry.addr)
+                            + ": repeated request, answered with one SMS");
+                    // ahead of the kept entries, the service can be destroyed after the last of those
+                    getMainExecutor().execute(() -> onProcessEntryDone(qEntry));
+                }
+            }
+            final int numEntries = entries.size();
+
             final String title = cTitlePrefix +
                (numEntries == 1 ? Utils.getDisplayName(this, entries.get(0).addr) : "multiple (" + numEntries + ")");
 
             if (numEntries == 1) {
                 final QueueEntry<EntryDataT> qEntry = entries.get(0);
                 final boolean processOk = processEntry(qEntry);
+                _ackOutbox(qEntry);
                 getMainExecutor().execute(() -> {
                     _postFinalNotification(title, processResult, detail, processOk);
                     onProcessEntryDone(qEntry);
@@ -157,6 +289,7 @@ public abstract class ABaseFgService<EntryDataT> extends Service
                 for (int i = 0; i < numEntries; i++) {
                     final QueueEntry<EntryDataT> qEntry = entries.get(i);
                     final boolean processOk = processEntry(qEntry); //this one already logs
+                    _ackOutbox(qEntry);
                     if (!processOk) {
                         procOkCombined = false;
                     }
@@ -185,6 +318,16 @@ public abstract class ABaseFgService<EntryDataT> extends Service
         }
     }
 
+    /** Processed (a failed send goes to SmsResendFgService) or failed to start */
+    private void _ackOutbox(QueueEntry<EntryDataT> qEntry) {
+        final Long id = mOutboxIds.remove(qEntry);
+        if (id != null) {
+            final OutboxFile OUTBOX = OutboxFile.getInstance(this);
+            OUTBOX.ack(id);
+            OUTBOX.writeFileAsync();
+        }
+    }
+
     private void _postFinalNotification(final String title,
                 final ProcessResult procResult, final String detail, final boolean procOk) {
         final Notification not = mNotHandler.createNotification(
@@ -194,7 +337,9 @@ public abstract class ABaseFgService<EntryDataT> extends Service
 
         // final notification
         startForeground(cNotId, not);
-        stopForeground(STOP_FOREGROUND_DETACH);
+        if (!stayInForeground()) {
+            stopForeground(STOP_FOREGROUND_DETACH);
+        }
 
         // if detail was not posted log it
         if (!procOk && detail != null) {
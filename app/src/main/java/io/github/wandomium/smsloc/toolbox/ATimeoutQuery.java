@@ -20,14 +20,13 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Helper class for query with timeout.
  * <p>
+ * Query and timeout run on the shared AppExecutor, no threads are owned by this class.
  * Once shutdown is called, the resources are freed and the query cannot be reused
  *
  * @param <T>
@@ -36,7 +35,8 @@ public abstract class ATimeoutQuery<T>
 {
     private Callback<T> mCallback;
 
-    private final ScheduledThreadPoolExecutor mScheduler;
+    private final AppExecutor mScheduler;
+    private boolean mShutdown = false;
 
     private Runnable mTimeoutRunnable;
     private ScheduledFuture<?> mTimeoutFuture;
@@ -66,8 +66,7 @@ public abstract class ATimeoutQuery<T>
     {
         mCallback = callback;
 
-        mScheduler = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(2);
-        mScheduler.setRemoveOnCancelPolicy(true);
+        mScheduler = AppExecutor.getInstance();
 
         mTimeoutRunnable = () -> {
             cancelCall();
@@ -80,18 +79,14 @@ public abstract class ATimeoutQuery<T>
         };
     }
 
-    public boolean enqueueCall(int timeoutMs)
+    public synchronized boolean enqueueCall(int timeoutMs)
     {
-        // If scheduler is shut down it means we stopped everything
+        // If we are shut down it means we stopped everything
         // most references are already null
-        if (mCallback == null || mScheduler.getActiveCount() != 0 || mScheduler.isShutdown()) {
+        if (mCallback == null || mShutdown || _callActive()) {
             return false;
         }
 
-        // remove any scheduled tasks that were not canceled, mem cleanup
-        // has no effect on execution
-        mScheduler.purge();
-
         // runnable is assigned to the Future object returned here
         // scheduled runnables are not placed directly into queue. What is in
         // the queue is the returned Future
@@ -107,27 +102,31 @@ public abstract class ATimeoutQuery<T>
      * process in _execute to be interruptible
      * @noinspection UnusedReturnValue
      */
-    public boolean cancelCall()
+    public synchronized boolean cancelCall()
     {
         Log.i("TimeoutQuery", "cancelCall");
-        // Canceled tasks get removed immediately due to policy set at the beginning
-        try {
+        // Canceled tasks get removed immediately, shared executor has remove on cancel policy
+        if (mTimeoutFuture != null) {
             mTimeoutFuture.cancel(true);
+        }
+        if (mQueryFuture != null) {
             mQueryFuture.cancel(true);
         }
-        catch (NullPointerException e) {
-            Log.i("TEST", "test");} //if no call was issued
-        // TODO check this: tryTerminate()  must be called after bla bl
-        return mScheduler.getActiveCount() == 0;
+        return !_callActive();
+    }
+
+    private boolean _callActive()
+    {
+        return (mQueryFuture != null && !mQueryFuture.isDone())
+                || (mTimeoutFuture != null && !mTimeoutFuture.isDone());
     }
 
     /** @noinspection CommentedOutCode*/
-    public boolean shutdown()
+    public synchronized boolean shutdown()
     {
-        mScheduler.shutdown();
-        cancelCall();
+        mShutdown = true;
+        final boolean callStopped = cancelCall();
 
-        // purge is already called in cancel
         // removing runnables does nothing because they are not directly in the queue, future objects are
 
         // future holds reference to runnable that holds reference to cb and this class
@@ -144,6 +143,6 @@ public abstract class ATimeoutQuery<T>
 //        Log.i("TimeoutQuery", "queue count: "  + mScheduler.getQueue().size());
 //        Log.i("TimeoutQuery", "task count: "  + mScheduler.getTaskCount());
 
-        return mScheduler.isTerminated(); //TODO
+        return callStopped;
     }
 }
@@ -0,0 +1,151 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.toolbox;
+
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One small thread pool for all background work of the app: file I/O, location
+ * callbacks, timeouts and other one-off tasks.
+ * <p>
+ * Threads time out when idle, so nothing is kept alive after the receiver or the
+ * service is done. Work that has to stay ordered (writes of one file) goes trough
+ * a SerialLane, lanes share the pool threads.
+ */
+public final class AppExecutor implements Executor
+{
+    private static final String CLASS_TAG = AppExecutor.class.getSimpleName();
+
+    public static final int POOL_SIZE = 3;
+    private static final long KEEP_ALIVE_S = 30;
+
+    private static AppExecutor mInstance;
+
+    private final ScheduledThreadPoolExecutor mPool;
+
+    public static synchronized AppExecutor getInstance()
+    {
+        if (mInstance == null) {
+            mInstance = new AppExecutor();
+        }
+        return mInstance;
+    }
+
+    private AppExecutor()
+    {
+        final AtomicInteger threadCnt = new AtomicInteger(0);
+        final ThreadFactory threadFactory = (Runnable r) -> {
+            final Thread t = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "SmsLoc-bg-" + threadCnt.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+
+        mPool = new ScheduledThreadPoolExecutor(POOL_SIZE, threadFactory);
+        mPool.setKeepAliveTime(KEEP_ALIVE_S, TimeUnit.SECONDS);
+        mPool.allowCoreThreadTimeOut(true);
+        mPool.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command)
+    {
+        mPool.execute(() -> _runLogged(command));
+    }
+
+    public ScheduledFuture<?> schedule(@NonNull Runnable command, long delay, @NonNull TimeUnit unit)
+    {
+        return mPool.schedule(() -> _runLogged(command), delay, unit);
+    }
+
+    /** Create a new serial lane. Tasks of one lane run one at a time in submission order */
+    public SerialLane newLane()
+    {
+        return new SerialLane();
+    }
+
+    // The pool wraps tasks in futures that nobody reads, exceptions would just disappear
+    private static void _runLogged(Runnable command)
+    {
+        try {
+            command.run();
+        }
+        catch (RuntimeException e) {
+            Log.e(CLASS_TAG, "Background task failed: " + e);
+        }
+    }
+
+    public final class SerialLane implements Executor
+    {
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private boolean mActive = false;
+
+        private SerialLane() {}
+
+        @Override
+        public void execute(@NonNull Runnable command)
+        {
+            synchronized (mTasks) {
+                mTasks.add(command);
+                if (mActive) {
+                    return;
+                }
+                mActive = true;
+            }
+            mPool.execute(this::_runNext);
+        }
+
+        /** Delay is applied before the task enters the lane, the returned future can
+         * only cancel it while it is still waiting for the delay */
+        public ScheduledFuture<?> schedule(@NonNull Runnable command, long delay, @NonNull TimeUnit unit)
+        {
+            return mPool.schedule(() -> execute(command), delay, unit);
+        }
+
+        // one task per pool submission so a busy lane cannot starve the others
+        private void _runNext()
+        {
+            final Runnable next;
+            synchronized (mTasks) {
+                next = mTasks.poll();
+            }
+            if (next != null) {
+                _runLogged(next);
+            }
+            synchronized (mTasks) {
+                if (mTasks.isEmpty()) {
+                    mActive = false;
+                    return;
+                }
+            }
+            mPool.execute(this::_runNext);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.toolbox;
+
+import java.util.Arrays;
+
+/**
+ * Fixed capacity buffer, when full the oldest element is overwritten.
+ * Indexing is newest first: get(0) is the last added element.
+ * <p>
+ * Not thread safe, callers have to lock.
+ */
+public class RingBuffer<E>
+{
+    private final Object[] mItems;
+    private int mNext = 0;  //index of the next write
+    private int mSize = 0;
+
+    public RingBuffer(int capacity)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be > 0");
+        }
+        mItems = new Object[capacity];
+    }
+
+    /** @return element that was overwritten or null */
+    public E add(E item)
+    {
+        @SuppressWarnings("unchecked")
+        final E evicted = (mSize == mItems.length) ? (E) mItems[mNext] : null;
+
+        mItems[mNext] = item;
+        mNext = (mNext + 1) % mItems.length;
+        if (mSize < mItems.length) {
+            mSize++;
+        }
+        return evicted;
+    }
+
+    /** @param i 0 is the newest element */
+    public E get(int i)
+    {
+        if (i < 0 || i >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " + mSize);
+        }
+        final int idx = (mNext - 1 - i + mItems.length) % mItems.length;
+        @SuppressWarnings("unchecked")
+        final E item = (E) mItems[idx];
+        return item;
+    }
+
+    public int size()     { return mSize; }
+    public int capacity() { return mItems.length; }
+    public boolean isEmpty() { return mSize == 0; }
+
+    public void clear()
+    {
+        Arrays.fill(mItems, null);
+        mNext = 0;
+        mSize = 0;
+    }
+}
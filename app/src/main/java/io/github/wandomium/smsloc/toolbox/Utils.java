@@ -30,8 +30,13 @@ import static android.content.Context.BATTERY_SERVICE;
 
 //import org.osmdroid.library.BuildConfig;
 import io.github.wandomium.smsloc.BuildConfig;
+import io.github.wandomium.smsloc.data.file.FixTimeFile;
 import io.github.wandomium.smsloc.data.file.LogFile;
+import io.github.wandomium.smsloc.data.file.LastFixFile;
+import io.github.wandomium.smsloc.data.file.MyTrackFile;
+import io.github.wandomium.smsloc.data.file.OutboxFile;
 import io.github.wandomium.smsloc.data.file.PeopleDataFile;
+import io.github.wandomium.smsloc.data.file.RateLimitFile;
 import io.github.wandomium.smsloc.data.file.SmsDayDataFile;
 import io.github.wandomium.smsloc.defs.SmsLoc_Common;
 
@@ -39,10 +44,16 @@ public class Utils
 {
     public static final int MIN_2_MS = 60 * 1000;
 
+    public static final long DAY_2_MS = 24L * 60 * MIN_2_MS;
+
     public static String getDateForFilename()
+    {
+        return getDateForFilename(System.currentTimeMillis());
+    }
+    public static String getDateForFilename(long ms)
     {
         //TODO-low always use utc format here
-        return new SimpleDateFormat("yyyy-MM-dd", Locale.GERMAN).format(new Date(System.currentTimeMillis()));
+        return new SimpleDateFormat("yyyy-MM-dd", Locale.GERMAN).format(new Date(ms));
     }
 
     public static String getDisplayName(Context context, final String addr) {
@@ -102,15 +113,18 @@ public class Utils
                         .getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
     }
 
-    /** Synchronously write, make sure it is stored
-     * close all executor threads */
-    public static void closeAllFiles(Context ctx) {
-        SmsDayDataFile.getInstance(ctx).writeFileBlocking();
-        SmsDayDataFile.getInstance(ctx).close();
-        PeopleDataFile.getInstance(ctx).writeFileBlocking();
-        PeopleDataFile.getInstance(ctx).close();
-        LogFile.getInstance(ctx).writeFileBlocking();
-        LogFile.getInstance(ctx).close();
+    /** Synchronously write, make sure it is stored (pending write-behinds are flushed).
+     * Files that were never loaded are skipped. Nothing is closed, services running in the
+     * same process keep using the files and their later write-behinds must not be dropped */
+    public static void flushAllFiles() {
+        SmsDayDataFile.flushIfLoaded();
+        PeopleDataFile.flushIfLoaded();
+        LogFile.flushIfLoaded();
+        MyTrackFile.flushIfLoaded();
+        LastFixFile.flushIfLoaded();
+        FixTimeFile.flushIfLoaded();
+        OutboxFile.flushIfLoaded();
+        RateLimitFile.flushIfLoaded();
     }
 
     public static class Debug
@@ -16,6 +16,7 @@
  */
 package io.github.wandomium.smsloc.ui.dialogs;
 
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
@@ -29,15 +30,23 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.DialogFragment;
 
+import io.github.wandomium.smsloc.data.file.LocationHistory;
 import io.github.wandomium.smsloc.data.file.LogFile;
 import io.github.wandomium.smsloc.data.file.SmsDayDataFile;
 import io.github.wandomium.smsloc.data.file.PeopleDataFile;
+import io.github.wandomium.smsloc.data.file.RateLimitFile;
 import io.github.wandomium.smsloc.data.unit.GpsData;
 import io.github.wandomium.smsloc.data.unit.SmsLocData;
 import io.github.wandomium.smsloc.defs.SmsLoc_Common;
 import io.github.wandomium.smsloc.defs.SmsLoc_Intents;
+import io.github.wandomium.smsloc.defs.SmsLoc_Settings;
 import io.github.wandomium.smsloc.SmsUtils;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
 import io.github.wandomium.smsloc.toolbox.Utils;
+import io.github.wandomium.smsloc.ui.main.AMapFragment;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
 
 
 public class PersonActionDialogFragment extends DialogFragment
@@ -46,9 +55,11 @@ public class PersonActionDialogFragment extends DialogFragment
     private final Location mMyLocation;
 
     private enum Actions {
-        REQUEST, NAVIGATE, DETAILS, REMOVE;
+        REQUEST, REQUEST_TRAIL, TRACK, STOP_TRACKING, NAVIGATE, DETAILS, HISTORY, REMOVE;
 
-        final static String[] LIST = {"Request Location", "Navigate to", "Details", "Remove from list"};
+        final static String[] LIST = {"Request Location", "Request Trail",
+                "Track for " + SmsUtils.TRACK_DEFAULT_DURATION_S / 60 + " min", "Stop Tracking",
+                "Navigate to", "Details", "Show history on map", "Remove from list"};
         static Actions fromInt(final int code) {
             return (code >= values().length) ? null : (code < 0 ? null : values()[code]);
         }
@@ -86,9 +97,11 @@ public class PersonActionDialogFragment extends DialogFragment
                     }
                     else switch(action) {
                         case REQUEST:
-                            LOGDATA.addLogEntry("Requesting location from: " + displayName);
+                        case REQUEST_TRAIL:
+                            LOGDATA.addLogEntry("Requesting " + (action == Actions.REQUEST ? "location" : "trail")
+                                    + " from: " + displayName);
                             try {
-                                _sendSmsLocationQuery();
+                                _sendSmsLocationQuery(action == Actions.REQUEST_TRAIL);
                             }
                             catch (Exception e) {
                                 final Context ctx = PersonActionDialogFragment.this.requireContext();
@@ -98,6 +111,28 @@ public class PersonActionDialogFragment extends DialogFragment
                             }
                             break;
 
+                        case TRACK:
+                        case STOP_TRACKING:
+                            final String trackSms = action == Actions.TRACK ?
+                                SmsUtils.trackRequestText(SmsUtils.TRACK_DEFAULT_INTERVAL_S,
+                                    SmsUtils.TRACK_DEFAULT_DURATION_S, SmsUtils.TRACK_DEFAULT_MAX_SMS)
+                                : SmsUtils.REQUEST_TRACK_STOP_CODE;
+                            LOGDATA.addLogEntry((action == Actions.TRACK ? "Start" : "Stop") + " tracking: " + displayName);
+                            try {
+                                SmsUtils.sendSmsAndThrow(getContext(), mAddr, trackSms);
+                                if (action == Actions.TRACK) {
+                                    final SmsDayDataFile DAYDATA = SmsDayDataFile.getInstance(getContext());
+                                    DAYDATA.applyOp(SmsLocData.Op.requestSent(mAddr));
+                                    DAYDATA.writeFileAsync();
+                                }
+                            }
+                            catch (Exception e) {
+                                final String msg = "Send SMS FAIL: " + e.getMessage();
+                                LOGDATA.addLogEntry(msg);
+                                _showErrorDialog(msg);
+                            }
+                            break;
+
                         case REMOVE:
                             final Context ctx = PersonActionDialogFragment.this.requireContext();
                             LOGDATA.addLogEntry("Removing person: " + displayName);
@@ -112,11 +147,27 @@ public class PersonActionDialogFragment extends DialogFragment
                             break;
 
                         case DETAILS:
-                            new AlertDialog.Builder(getActivity())
-                                    .setTitle(String.format("%s: %s", displayName, mAddr))
-                                    .setMessage(_generateDetailsStr(GPSDATA.getDataEntry(mAddr)))
-                                    .setNegativeButton("Close", null)
-                                    .create().show();
+                            // history reads previous day files, keep it off the main thread
+                            final Activity activity = requireActivity();
+                            final SmsLocData locData = GPSDATA.getDataEntry(mAddr);
+                            AppExecutor.getInstance().execute(() -> {
+                                final String details = _generateDetailsStr(locData) + _generateHistoryStr(activity)
+                                        + _generateRateLimitStr(activity);
+                                activity.runOnUiThread(() -> {
+                                    if (activity.isFinishing()) {
+                                        return;
+                                    }
+                                    new AlertDialog.Builder(activity)
+                                            .setTitle(String.format("%s: %s", displayName, mAddr))
+                                            .setMessage(details)
+                                            .setNegativeButton("Close", null)
+                                            .create().show();
+                                });
+                            });
+                            break;
+
+                        case HISTORY:
+                            _showHistoryRangeDialog(requireActivity(), displayName);
                             break;
                     }
                 })
@@ -130,15 +181,21 @@ public class PersonActionDialogFragment extends DialogFragment
                 .show();
     }
 
-    private void _sendSmsLocationQuery()
+    private void _sendSmsLocationQuery(final boolean trail)
     {
-        SmsUtils.sendSmsAndThrow(getContext(), mAddr, SmsUtils.REQUEST_CODE);
+        if (trail) {
+            // only what we do not have yet
+            final SmsLocData locData = SmsDayDataFile.getInstance(getContext()).getDataEntry(mAddr);
+            final GpsData last = locData == null ? null : locData.getLastValidLocation();
+            SmsUtils.sendSmsAndThrow(getContext(), mAddr,
+                SmsUtils.trailRequestText(SmsUtils.TRAIL_DEFAULT_POINTS, last == null ? 0 : last.utc));
+        }
+        else {
+            SmsUtils.sendSmsAndThrow(getContext(), mAddr, SmsUtils.requestText());
+        }
 
         final SmsDayDataFile DAYDATA = SmsDayDataFile.getInstance(getContext());
-        synchronized (DAYDATA.getLockObject())
-        {
-            DAYDATA.referenceOrCreateObject_unlocked(mAddr).requestSent();
-        }
+        DAYDATA.applyOp(SmsLocData.Op.requestSent(mAddr));
         DAYDATA.writeFileAsync();
 
         requireContext().sendBroadcast(
@@ -164,6 +221,61 @@ public class PersonActionDialogFragment extends DialogFragment
         return true;
     }
 
+    /** Map shows the track over the selected range, see AMapFragment.setHistoryRange */
+    private void _showHistoryRangeDialog(final Activity activity, final String displayName)
+    {
+        final int maxDays = SmsLoc_Settings.HISTORY_RETENTION_DAYS.getInt(activity);
+        final int[] days = {0, 1, 3, 7, maxDays};
+        final String[] labels = {"Today only", "Last 24 h", "Last 3 days", "Last 7 days",
+                "Last " + maxDays + " days (all kept)"};
+
+        new AlertDialog.Builder(activity)
+                .setTitle("History of " + displayName)
+                .setNegativeButton("Cancel", null)
+                .setItems(labels, (DialogInterface dialog, int which) -> {
+                    final long fromUtc = days[which] == 0 ? 0 : System.currentTimeMillis() - days[which] * Utils.DAY_2_MS;
+                    // open ended, new locations keep being added
+                    AMapFragment.setHistoryRange(activity, mAddr, fromUtc, Long.MAX_VALUE);
+                })
+                .create().show();
+    }
+
+    private String _generateHistoryStr(final Context ctx)
+    {
+        final int days = SmsLoc_Settings.HISTORY_RETENTION_DAYS.getInt(ctx);
+        final long now = System.currentTimeMillis();
+        final ArrayList<GpsData> history =
+                LocationHistory.getInstance(ctx).query(mAddr, now - days * Utils.DAY_2_MS, now);
+
+        final StringBuilder sb = new StringBuilder("\n\nHistory:")
+                .append(String.format(SmsLoc_Common.LOCALE, "\n\tLocations in last %d days: %d", days, history.size()));
+        if (history.isEmpty()) {
+            return sb.toString();
+        }
+        sb.append("\n\tFirst: ").append(Utils.msToStr(history.get(0).utc))
+          .append("\n\tLast: ").append(Utils.msToStr(history.get(history.size() - 1).utc));
+
+        // oldest first, one line per day with locations
+        final TreeMap<String, Integer> perDay = new TreeMap<>();
+        for (GpsData loc : history) {
+            perDay.merge(Utils.getDateForFilename(loc.utc), 1, Integer::sum);
+        }
+        perDay.forEach((date, count) ->
+                sb.append(String.format(SmsLoc_Common.LOCALE, "\n\t%s: %d", date, count)));
+        return sb.toString();
+    }
+
+    private String _generateRateLimitStr(final Context ctx)
+    {
+        final RateLimitFile.Stats stats = RateLimitFile.getInstance(ctx).getStats(mAddr);
+        return "\n\nRate limit:"
+                + String.format(SmsLoc_Common.LOCALE, "\n\tAnswered: %d", stats.senderAllowed())
+                + String.format(SmsLoc_Common.LOCALE, "\n\tSuppressed: %d", stats.senderSuppressed())
+                + String.format(SmsLoc_Common.LOCALE, "\n\tWaiting for answer: %d", stats.waiting())
+                + String.format(SmsLoc_Common.LOCALE, "\n\tAll senders: %d answered, %d suppressed",
+                        stats.allowed(), stats.suppressed());
+    }
+
     private String _generateDetailsStr(SmsLocData locData)
     {
         if (locData == null) {
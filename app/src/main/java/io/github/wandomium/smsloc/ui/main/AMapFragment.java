@@ -16,11 +16,13 @@
  */
 package io.github.wandomium.smsloc.ui.main;
 
+import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 
 import androidx.annotation.LayoutRes;
 
+import io.github.wandomium.smsloc.data.file.LocationHistory;
 import io.github.wandomium.smsloc.data.file.SmsDayDataFile;
 import io.github.wandomium.smsloc.data.unit.GpsData;
 import io.github.wandomium.smsloc.data.unit.SmsLocData;
@@ -28,13 +30,38 @@ import io.github.wandomium.smsloc.defs.SmsLoc_Common;
 import io.github.wandomium.smsloc.defs.SmsLoc_Intents;
 import io.github.wandomium.smsloc.mapdata.AMapTracksDisplay;
 import io.github.wandomium.smsloc.toolbox.ABaseBrdcstRcv;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
 import io.github.wandomium.smsloc.toolbox.Utils;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 public abstract class AMapFragment extends ABaseFragment
 {
     protected AMapTracksDisplay mTracksDisplay;
     protected GpsData mLastUpdateLoc = null;
 
+    /* Time range a track is shown for, addr -> {fromUtc, toUtc}. Only the open day if not set.
+     * Kept over map view re-creation, the map tab is created lazily */
+    private static final HashMap<String, long[]> sHistoryRanges = new HashMap<>();
+
+    /**
+     * Show addr's track from fromUtc to toUtc (Long.MAX_VALUE keeps adding new locations).
+     * @param fromUtc <= 0 goes back to only the open day
+     */
+    public static void setHistoryRange(Context ctx, String addr, long fromUtc, long toUtc)
+    {
+        synchronized (sHistoryRanges) {
+            if (fromUtc <= 0) {
+                sHistoryRanges.remove(addr);
+            }
+            else {
+                sHistoryRanges.put(addr, new long[]{fromUtc, toUtc});
+            }
+        }
+        ctx.sendBroadcast(SmsLoc_Intents.generateIntentWithAddr(ctx, addr, SmsLoc_Intents.ACTION_HISTORY_RANGE));
+    }
+
     public AMapFragment(@LayoutRes int layout)
     {
         super(layout);
@@ -47,7 +74,8 @@ public abstract class AMapFragment extends ABaseFragment
     protected void _createBroadcastReceivers() {
         /* Handle people data updates */
         mReceiverList.add(new ABaseBrdcstRcv<>(AMapFragment.this,
-                new String[]{SmsLoc_Intents.ACTION_PERSON_REMOVED, SmsLoc_Intents.ACTION_NEW_PERSON}) {
+                new String[]{SmsLoc_Intents.ACTION_PERSON_REMOVED, SmsLoc_Intents.ACTION_NEW_PERSON,
+                        SmsLoc_Intents.ACTION_HISTORY_RANGE}) {
             @Override
             public void onReceive(Context context, Intent intent) {
                 final String action = intent.getAction();
@@ -59,20 +87,15 @@ public abstract class AMapFragment extends ABaseFragment
 //                    case SmsLoc_Intents.ACTION_PERSON_REMOVED -> mParent.get().mTracksDisplay.removeTrack(addr);
                     // We have this person's loc data but it was previously unlisted, repaint
                     // Option b: person was removed from list but we still have location data for today
-                    case SmsLoc_Intents.ACTION_NEW_PERSON, SmsLoc_Intents.ACTION_PERSON_REMOVED -> {
-                        mParent.get().mTracksDisplay.removeTrack(addr);
-                        final SmsLocData locData = SmsDayDataFile.getInstance(context).getDataEntry(addr);
-                        if (locData != null) {
-                            mParent.get().mTracksDisplay.addTrack(addr, locData);
-                        }
-                    }
+                    case SmsLoc_Intents.ACTION_NEW_PERSON, SmsLoc_Intents.ACTION_PERSON_REMOVED,
+                         SmsLoc_Intents.ACTION_HISTORY_RANGE -> mParent.get()._redrawTrack(context, addr);
                 }
             }
         });
 
         /* Handle location data updates */
         mReceiverList.add(new ABaseBrdcstRcv<>(AMapFragment.this,
-                new String[]{SmsLoc_Intents.ACTION_NEW_LOCATION, SmsLoc_Intents.ACTION_DAY_DATA_CLR}) {
+                new String[]{SmsLoc_Intents.ACTION_NEW_LOCATION, SmsLoc_Intents.ACTION_NEW_TRAIL, SmsLoc_Intents.ACTION_DAY_DATA_CLR}) {
             // this always runs on the main thread
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -90,6 +113,15 @@ public abstract class AMapFragment extends ABaseFragment
                         //should be last so we don't remove if not needed
                         mParent.get()._clearPopups();
                         break;
+                    case SmsLoc_Intents.ACTION_NEW_TRAIL:
+                        // trail points can be older than the ones we have, redraw the whole track
+                        final String trailAddr = intent.getStringExtra(SmsLoc_Intents.EXTRA_ADDR);
+                        final SmsLocData trailData = SmsDayDataFile.getInstance(context).getDataEntry(trailAddr);
+                        mParent.get()._redrawTrack(context, trailAddr);
+                        mParent.get().mLastUpdateLoc = trailData.getLastValidLocation();
+                        mParent.get()._zoomToLastPoint();
+                        mParent.get()._clearPopups();
+                        break;
                     case SmsLoc_Intents.ACTION_DAY_DATA_CLR:
                         //TODO: maybe apply some default bounds
                         mParent.get().mTracksDisplay.removeAll();
@@ -100,6 +132,53 @@ public abstract class AMapFragment extends ABaseFragment
         });
     }
 
+    /** Draws the tracks that have a history range set, call after the open day is shown */
+    protected void _showHistoryRanges(Context context)
+    {
+        final ArrayList<String> addrs;
+        synchronized (sHistoryRanges) {
+            addrs = new ArrayList<>(sHistoryRanges.keySet());
+        }
+        for (String addr : addrs) {
+            _redrawTrack(context, addr);
+        }
+    }
+
+    /** Replaces addr's track, history is read off the main thread */
+    protected void _redrawTrack(Context context, final String addr)
+    {
+        final long[] range;
+        synchronized (sHistoryRanges) {
+            range = sHistoryRanges.get(addr);
+        }
+        if (range == null) {
+            if (mTracksDisplay != null) {
+                mTracksDisplay.removeTrack(addr);
+                final SmsLocData locData = SmsDayDataFile.getInstance(context).getDataEntry(addr);
+                if (locData != null) {
+                    mTracksDisplay.addTrack(addr, locData);
+                }
+            }
+            return;
+        }
+
+        final Context appCtx = context.getApplicationContext();
+        AppExecutor.getInstance().execute(() -> {
+            final ArrayList<GpsData> history = LocationHistory.getInstance(appCtx).query(addr, range[0], range[1]);
+            final Activity activity = getActivity();
+            if (activity == null) {
+                return;
+            }
+            activity.runOnUiThread(() -> {
+                if (mTracksDisplay == null) {
+                    return; //view was destroyed meanwhile
+                }
+                mTracksDisplay.removeTrack(addr);
+                mTracksDisplay.addTrack(addr, history);
+            });
+        });
+    }
+
     public static String markerDataString(GpsData gpsData)
     {
         return String.format(SmsLoc_Common.LOCALE, "%s\nSpeed: %d kmh\nAltitude: %d m\nBattery: %d%%",
@@ -16,11 +16,13 @@
  */
 package io.github.wandomium.smsloc.ui.main;
 
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 
@@ -33,11 +35,26 @@ import io.github.wandomium.smsloc.data.file.LogFile;
 import io.github.wandomium.smsloc.data.file.PeopleDataFile;
 import io.github.wandomium.smsloc.toolbox.ABaseBrdcstRcv;
 import io.github.wandomium.smsloc.defs.SmsLoc_Intents;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class LogFragment extends ABaseFragment
 {
+    private static final int PAGE_SIZE = 100;
+    // start loading the next page when this close to the end of the list
+    private static final int PREFETCH_ROWS = 20;
+
     private ListView mListView;
 
+    // Log is shown two rows per entry (time, msg). Pages are requested relative to mHeadSeq
+    private long mHeadSeq;
+    private int mLoadedEntries;
+    private boolean mAllLoaded;
+    private boolean mPageLoading;
+    private int mLoadGeneration = 0;
+
     public LogFragment() { super(R.layout.fragment_log); }
     public static LogFragment newInstance(final int position) {
         final LogFragment newInstance = new LogFragment();
@@ -61,13 +78,25 @@ public class LogFragment extends ABaseFragment
         mListView = view.findViewById(R.id.log_list);
         mListView.setAdapter(new ArrayAdapter<>(
                 // It is extremely unlikely that context would be null when view is created
-                requireContext(), android.R.layout.simple_list_item_1, LogFile.getInstance(getContext()).readLog()));
+                requireContext(), android.R.layout.simple_list_item_1, new ArrayList<String>()));
+        _listAdapter().setNotifyOnChange(false);
+        mListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {}
+            @Override
+            public void onScroll(AbsListView view, int firstVisible, int visibleCount, int totalCount) {
+                if (firstVisible + visibleCount + PREFETCH_ROWS >= totalCount) {
+                    _loadNextPage();
+                }
+            }
+        });
+        _reloadLog();
 
         /* Clear log btn */
         view.findViewById(R.id.clear_log)
                 .setOnClickListener((View v) -> {
                     LogFile.getInstance(v.getContext()).clearLog();
-                    _listAdapter().notifyDataSetChanged();
+                    _reloadLog();
                 });
 
         /* Unauthorized requests btn */
@@ -88,8 +117,10 @@ public class LogFragment extends ABaseFragment
     @Override
     public void onDestroyView()
     {
+        mListView.setOnScrollListener(null);
         mListView.setAdapter(null);
         mListView = null;
+        mLoadGeneration++; //drop pages still loading
 
         super.onDestroyView();
     }
@@ -101,7 +132,7 @@ public class LogFragment extends ABaseFragment
                 new String[]{SmsLoc_Intents.ACTION_LOG_UPDATED}) {
             @Override
             public void onReceive(Context context, Intent intent) {
-                mParent.get()._listAdapter().notifyDataSetChanged();
+                mParent.get()._loadNewEntries();
             }
         });
     }
@@ -111,7 +142,79 @@ public class LogFragment extends ABaseFragment
     {
         super.onResume();
         if (mListView != null) {
-            _listAdapter().notifyDataSetChanged();
+            _loadNewEntries();
         }
     }
+
+    private void _reloadLog()
+    {
+        mLoadGeneration++;
+        mHeadSeq = LogFile.getInstance(requireContext()).getHeadSeq();
+        mLoadedEntries = 0;
+        mAllLoaded = false;
+        mPageLoading = false;
+
+        _listAdapter().clear();
+        _listAdapter().notifyDataSetChanged();
+        _loadNextPage();
+    }
+
+    /** Only inserts what was added since the last update at the top */
+    private void _loadNewEntries()
+    {
+        final LogFile.Page newer = LogFile.getInstance(requireContext()).readNewer(mHeadSeq);
+        if (newer == null) {
+            _reloadLog();
+            return;
+        }
+        if (newer.entries().isEmpty()) {
+            return;
+        }
+
+        final ArrayAdapter<String> adapter = _listAdapter();
+        final List<LogFile.Entry> entries = newer.entries();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            adapter.insert(entries.get(i).msg(), 0);
+            adapter.insert(entries.get(i).time(), 0);
+        }
+        adapter.notifyDataSetChanged();
+
+        // offsets of older pages stay relative to mHeadSeq, so both move together
+        mHeadSeq = newer.headSeq();
+        mLoadedEntries += entries.size();
+    }
+
+    /** Older pages might come from disk, load them in the background */
+    private void _loadNextPage()
+    {
+        if (mPageLoading || mAllLoaded || mListView == null) {
+            return;
+        }
+        mPageLoading = true;
+
+        final LogFile logFile = LogFile.getInstance(requireContext());
+        final int generation = mLoadGeneration;
+        final long headSeq = mHeadSeq;
+        final int offset = mLoadedEntries;
+        final Activity activity = requireActivity();
+
+        AppExecutor.getInstance().execute(() -> {
+            final List<LogFile.Entry> page = logFile.readLog(headSeq, offset, PAGE_SIZE);
+            activity.runOnUiThread(() -> {
+                if (generation != mLoadGeneration || mListView == null) {
+                    return;
+                }
+                mPageLoading = false;
+                mAllLoaded = page.size() < PAGE_SIZE;
+
+                final ArrayAdapter<String> adapter = _listAdapter();
+                for (LogFile.Entry entry : page) {
+                    adapter.add(entry.time());
+                    adapter.add(entry.msg());
+                }
+                adapter.notifyDataSetChanged();
+                mLoadedEntries += page.size();
+            });
+        });
+    }
 }
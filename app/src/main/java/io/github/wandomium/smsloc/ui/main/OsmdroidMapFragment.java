@@ -46,16 +46,15 @@ import org.osmdroid.views.overlay.compass.InternalCompassOrientationProvider;
 
 import io.github.wandomium.smsloc.BuildConfig;
 import io.github.wandomium.smsloc.R;
-import org.osmdroid.views.overlay.mylocation.GpsMyLocationProvider;
 import org.osmdroid.views.overlay.mylocation.MyLocationNewOverlay;
 
 import java.io.File;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import io.github.wandomium.smsloc.data.file.PeopleDataFile;
 import io.github.wandomium.smsloc.data.file.SmsDayDataFile;
+import io.github.wandomium.smsloc.mapdata.HubLocationProvider;
 import io.github.wandomium.smsloc.mapdata.OsmdroidTracksDisplay;
+import io.github.wandomium.smsloc.toolbox.AppExecutor;
 import io.github.wandomium.smsloc.toolbox.Utils;
 
 
@@ -111,8 +110,7 @@ public class OsmdroidMapFragment extends AMapFragment
     {
         super.onViewCreated(view, savedInstanceState);
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(() -> {
+        AppExecutor.getInstance().execute(() -> {
 //            _loadConfig(this.requireActivity().getApplicationContext());
             Configuration.setConfigurationProvider(new PredefinedConfigProvider(
                     this.requireActivity().getApplicationContext()
@@ -135,8 +133,6 @@ public class OsmdroidMapFragment extends AMapFragment
                 _configureMapView();
                 _configureMapScroll();
             });
-
-            executor.shutdownNow();
         });
     }
 
@@ -187,6 +183,7 @@ public class OsmdroidMapFragment extends AMapFragment
 
         mTracksDisplay = new OsmdroidTracksDisplay(mMapView, PeopleDataFile.getInstance(getContext()));
         mTracksDisplay.initFromDayData(SmsDayDataFile.getInstance(getContext()).getDataAll());
+        _showHistoryRanges(requireContext());
 
         /* Initial bounds show all the tracks */
         final BoundingBox initBounds = ((OsmdroidTracksDisplay) mTracksDisplay).getBounds();
@@ -216,7 +213,8 @@ public class OsmdroidMapFragment extends AMapFragment
 
         /* My location */
         {
-            final MyLocationNewOverlay overlay = new MyLocationNewOverlay(new GpsMyLocationProvider(requireContext()), mMapView);
+            // fixes are also offered to LastFixFile by the hub
+            final MyLocationNewOverlay overlay = new MyLocationNewOverlay(new HubLocationProvider(requireContext()), mMapView);
             overlay.enableMyLocation();
             //This would automatically center on user location but we don't want it. We want to center on
             //location updates received as responses
@@ -26,7 +26,7 @@ import android.graphics.BlendModeColorFilter;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.location.Location;
-import android.os.Build;
+import android.location.LocationManager;
 import android.os.Bundle;
 import android.provider.ContactsContract;
 import android.util.Log;
@@ -53,6 +53,7 @@ import com.google.i18n.phonenumbers.NumberParseException;
 
 import io.github.wandomium.smsloc.MainActivity;
 import io.github.wandomium.smsloc.R;
+import io.github.wandomium.smsloc.LocationHub;
 import io.github.wandomium.smsloc.LocationRetriever;
 import io.github.wandomium.smsloc.SmsUtils;
 import io.github.wandomium.smsloc.data.file.LogFile;
@@ -84,7 +85,13 @@ public class PeopleFragment extends ABaseFragment implements LocationRetriever.L
     private ActivityResultLauncher<Intent> mContactPickerLauncher;
 
     private final long LOC_DELAY_MS = 100;
-    private boolean mSecondLocCall = false;
+    // All queried at once. Network is OK to use here, we are running app in the foreground,
+    // but it only wins outright with a wifi-grade fix, otherwise it is the fallback if GPS has nothing
+    private static final LocationRetriever.ProviderRule[] MY_LOCATION_RULES = {
+            new LocationRetriever.ProviderRule(LocationManager.GPS_PROVIDER, 100),
+            new LocationRetriever.ProviderRule(LocationManager.PASSIVE_PROVIDER, 100),
+            new LocationRetriever.ProviderRule(LocationManager.NETWORK_PROVIDER, 50)
+    };
 
     public PeopleFragment() { super(R.layout.fragment_people); }
     public static PeopleFragment newInstance(final int position) {
@@ -123,7 +130,7 @@ public class PeopleFragment extends ABaseFragment implements LocationRetriever.L
         /* Refresh my location */
         ((SwipeRefreshLayout) view.findViewById(R.id.refresh_people_list))
                 .setOnRefreshListener(() -> {
-                    LocationRetriever.getLocationWithGPS(LOC_DELAY_MS, PeopleFragment.this, requireContext()); //getActivity() may return null here
+                    _getMyLocation(requireContext()); //getActivity() may return null here
                 });
 
         /* Whitelist CB */
@@ -177,7 +184,7 @@ public class PeopleFragment extends ABaseFragment implements LocationRetriever.L
         super.onResume();
         // Disable when asking for permissions. To many calls - on every dialog close, etc.
         if (!((MainActivity) requireActivity()).permissionCheckActive()) {
-            LocationRetriever.getLocationWithGPS(LOC_DELAY_MS, this, requireActivity());
+            _getMyLocation(requireActivity());
         }
     }
 
@@ -186,7 +193,7 @@ public class PeopleFragment extends ABaseFragment implements LocationRetriever.L
     {
         mReceiverList.add(new ABaseBrdcstRcv<>(PeopleFragment.this,
                 new String[]{SmsLoc_Intents.ACTION_REQUEST_SENT, SmsLoc_Intents.ACTION_RESPONSE_RCVD,
-                        SmsLoc_Intents.ACTION_NEW_LOCATION, SmsLoc_Intents.ACTION_DAY_DATA_CLR,
+                        SmsLoc_Intents.ACTION_NEW_LOCATION, SmsLoc_Intents.ACTION_NEW_TRAIL, SmsLoc_Intents.ACTION_DAY_DATA_CLR,
                         SmsLoc_Intents.ACTION_PERSON_REMOVED, SmsLoc_Intents.ACTION_SMS_SEND_FAIL}) {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -200,8 +207,7 @@ public class PeopleFragment extends ABaseFragment implements LocationRetriever.L
                         return;
                     }
                     if (_listAdapter().mMyLocation == null) {
-                        LocationRetriever.getLocationWithGPS(LOC_DELAY_MS,
-                                PeopleFragment.this, PeopleFragment.this.requireActivity());
+                        _getMyLocation(PeopleFragment.this.requireActivity());
                     }
                     if (action.equals(SmsLoc_Intents.ACTION_PERSON_REMOVED)) {
                         final String addr = intent.getStringExtra(SmsLoc_Intents.EXTRA_ADDR);
@@ -217,6 +223,12 @@ public class PeopleFragment extends ABaseFragment implements LocationRetriever.L
         });
     }
 
+    private void _getMyLocation(Context ctx)
+    {
+        // onResume and every broadcast ask for it, concurrent calls share one race
+        LocationHub.getInstance(ctx).raceProviders(LOC_DELAY_MS, this, MY_LOCATION_RULES);
+    }
+
     @Override
     public void onLocationRcvd(Location loc, String msg)
     {
@@ -224,19 +236,6 @@ public class PeopleFragment extends ABaseFragment implements LocationRetriever.L
         if (activity == null) {
             return;
         }
-        if (loc == null && !mSecondLocCall) {
-            mSecondLocCall = true;
-            //TODO:
-            // This is a problem for API29 because the getLocationUpdates takes main looper by default
-            if (Build.VERSION.SDK_INT > 29) {
-                // OK to use, we are running app in the foreground
-                LocationRetriever.getLocationWithNetwork(LOC_DELAY_MS, this, activity);
-            }
-
-            return;
-        }
-
-        mSecondLocCall = false;
         activity.runOnUiThread(() -> {
             try {
                 ((SwipeRefreshLayout) PeopleFragment.this.mViewBinding
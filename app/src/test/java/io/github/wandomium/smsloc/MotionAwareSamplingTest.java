@@ -0,0 +1,187 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import io.github.wandomium.smsloc.data.unit.GpsData;
+
+/**
+ * Recorded tracks are replayed the way TrackingSession does it: lastSent only moves
+ * when a fix is sent
+ */
+public class MotionAwareSamplingTest
+{
+    private static final long BASE_MS = 60 * 1000;
+    private static final long T0 = 1729000000000L;
+    private static final double LAT = 46.0569, LON = 14.5058;
+    /* 1 m north in degrees, on the sphere distanceTo uses */
+    private static final double M_LAT = 1 / 111195.08;
+
+    private static GpsData _fix(long tMs, double northM, int accM)
+    {
+        return new GpsData(LAT + northM * M_LAT, LON, 300, T0 + tMs, 0, accM, 80);
+    }
+
+    /** Parked for 10 min (a few m of jitter) then driving north at 20 m/s, one fix per minute */
+    private static ArrayList<GpsData> _parkedThenDriving()
+    {
+        final double[] jitterM = {0, 3, -2, 4, -4, 1, 2, -3, 5, 0, -1};
+        final ArrayList<GpsData> track = new ArrayList<>();
+        for (int i = 0; i < jitterM.length; i++) {
+            track.add(_fix(i * BASE_MS, jitterM[i], 10));
+        }
+        for (int i = 1; i <= 5; i++) {
+            track.add(_fix((10 + i) * BASE_MS, i * 1200, 10));
+        }
+        return track;
+    }
+
+    private static ArrayList<SamplingPolicy.Decision> _replay(SamplingPolicy policy, ArrayList<GpsData> track, long baseMs)
+    {
+        final ArrayList<SamplingPolicy.Decision> decisions = new ArrayList<>();
+        GpsData lastSent = null;
+        for (GpsData fix : track) {
+            final SamplingPolicy.Decision decision = policy.onFix(fix, lastSent, baseMs);
+            if (decision.send()) {
+                lastSent = fix;
+            }
+            decisions.add(decision);
+        }
+        return decisions;
+    }
+
+    @Test
+    public void replay_parkedThenDriving()
+    {
+        final ArrayList<SamplingPolicy.Decision> decisions = _replay(new MotionAwareSampling(), _parkedThenDriving(), BASE_MS);
+
+        // first fix, jitter skipped, heartbeat at 10 intervals, every fix while driving
+        final boolean[] sent = {true, false, false, false, false, false, false, false, false, false, true,
+                true, true, true, true, true};
+        assertEquals(sent.length, decisions.size());
+        for (int i = 0; i < sent.length; i++) {
+            assertEquals("fix " + i, sent[i], decisions.get(i).send());
+        }
+        // the interval stretches while parked, at 20 m/s 300 m spacing is 15 s
+        assertEquals(BASE_MS, decisions.get(0).nextIntervalMs());
+        for (int i = 1; i <= 10; i++) {
+            assertEquals("fix " + i, 4 * BASE_MS, decisions.get(i).nextIntervalMs());
+        }
+        for (int i = 11; i < sent.length; i++) {
+            assertEquals("fix " + i, 15 * 1000, decisions.get(i).nextIntervalMs());
+        }
+    }
+
+    @Test
+    public void fixedPolicy_sendsEverything()
+    {
+        for (SamplingPolicy.Decision decision : _replay(SamplingPolicy.FIXED, _parkedThenDriving(), BASE_MS)) {
+            assertTrue(decision.send());
+            assertEquals(BASE_MS, decision.nextIntervalMs());
+        }
+    }
+
+    @Test
+    public void heartbeat_afterTenIntervals()
+    {
+        final MotionAwareSampling policy = new MotionAwareSampling();
+        final GpsData sent = _fix(0, 0, 5);
+        assertFalse(policy.onFix(_fix(10 * BASE_MS - 1000, 2, 5), sent, BASE_MS).send());
+        assertTrue(policy.onFix(_fix(10 * BASE_MS, 2, 5), sent, BASE_MS).send());
+        assertTrue(policy.onFix(_fix(25 * BASE_MS, 2, 5), sent, BASE_MS).send());
+
+        // the factor is configurable
+        final MotionAwareSampling often = new MotionAwareSampling(50, 300, 4, 3, 15 * 1000);
+        assertFalse(often.onFix(_fix(2 * BASE_MS, 2, 5), sent, BASE_MS).send());
+        assertTrue(often.onFix(_fix(3 * BASE_MS, 2, 5), sent, BASE_MS).send());
+    }
+
+    @Test
+    public void stationary_stretchesIntervalFourTimes()
+    {
+        final MotionAwareSampling policy = new MotionAwareSampling();
+        final GpsData sent = _fix(0, 0, 5);
+        for (long baseMs : new long[] {10 * 1000, BASE_MS, 5 * BASE_MS}) {
+            final SamplingPolicy.Decision decision = policy.onFix(_fix(baseMs, 30, 5), sent, baseMs);
+            assertFalse(decision.send());
+            assertEquals(4 * baseMs, decision.nextIntervalMs());
+        }
+        // a heartbeat keeps the stretched interval
+        assertEquals(4 * BASE_MS, policy.onFix(_fix(10 * BASE_MS, 30, 5), sent, BASE_MS).nextIntervalMs());
+    }
+
+    @Test
+    public void movement_withinAccuracyIsNoise()
+    {
+        final MotionAwareSampling policy = new MotionAwareSampling();
+        // 60 m is more than the 50 m minimum, but both fixes are only good to 40 m
+        assertFalse(policy.onFix(_fix(BASE_MS, 60, 40), _fix(0, 0, 40), BASE_MS).send());
+        assertTrue(policy.onFix(_fix(BASE_MS, 60, 5), _fix(0, 0, 5), BASE_MS).send());
+        assertFalse(policy.onFix(_fix(BASE_MS, 45, 5), _fix(0, 0, 5), BASE_MS).send());
+    }
+
+    @Test
+    public void moving_intervalFollowsSpeed()
+    {
+        final MotionAwareSampling policy = new MotionAwareSampling();
+        final GpsData sent = _fix(0, 0, 5);
+        // walking 1.5 m/s: 300 m takes 200 s, never longer than requested
+        assertEquals(BASE_MS, policy.onFix(_fix(BASE_MS, 90, 5), sent, BASE_MS).nextIntervalMs());
+        // cycling 6 m/s: 50 s
+        assertEquals(50 * 1000, policy.onFix(_fix(BASE_MS, 360, 5), sent, BASE_MS).nextIntervalMs(), 100);
+    }
+
+    @Test
+    public void moving_intervalFloorIs15s()
+    {
+        final MotionAwareSampling policy = new MotionAwareSampling();
+        final GpsData sent = _fix(0, 0, 5);
+        // 40 m/s would need 7.5 s
+        assertEquals(15 * 1000, policy.onFix(_fix(BASE_MS, 2400, 5), sent, BASE_MS).nextIntervalMs());
+        assertEquals(15 * 1000, policy.onFix(_fix(BASE_MS, 24000, 5), sent, BASE_MS).nextIntervalMs());
+        // a requester asking for less than the floor gets what it asked for, not less
+        assertEquals(10 * 1000, policy.onFix(_fix(10 * 1000, 400, 5), sent, 10 * 1000).nextIntervalMs());
+    }
+
+    @Test
+    public void distanceTo_haversine()
+    {
+        // reference values for a sphere of radius 6371008.8 m
+        _assertDistance(111195.08, 0, 0, 1, 0);
+        _assertDistance(111195.08, 0, 0, 0, 1);
+        _assertDistance(20015114.44, 0, 0, 0, 180);
+        _assertDistance(343556.53, 48.8566, 2.3522, 51.5074, -0.1278);    //Paris - London
+        _assertDistance(713428.47, -33.8688, 151.2093, -37.8136, 144.9631); //Sydney - Melbourne
+        _assertDistance(77.16, 46.0569, 14.5058, 46.0569, 14.5068);
+        _assertDistance(0, 46.0569, 14.5058, 46.0569, 14.5058);
+    }
+
+    private static void _assertDistance(double expectedM, double lat1, double lon1, double lat2, double lon2)
+    {
+        final GpsData a = new GpsData(lat1, lon1, 0, T0, 0, 0, 0);
+        final GpsData b = new GpsData(lat2, lon2, 0, T0, 0, 0, 0);
+        assertEquals(expectedM, a.distanceTo(b), 0.01);
+        assertEquals(expectedM, b.distanceTo(a), 0.01);
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * This file is part of SmsLoc.
+ * <p>
+ * SmsLoc is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * <p>
+ * SmsLoc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SmsLoc. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.wandomium.smsloc.data.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.github.wandomium.smsloc.defs.SmsLoc_Common;
+
+/**
+ * The "Loc:" SMS text has to stay readable by older app versions and the other way around.
+ * Output is compared with the String.format it replaced, input with the split/parseDouble parser.
+ */
+public class GpsDataTest
+{
+    private static final long UTC = 1729000000000L;
+
+    /** The parser before SmsParser, kept here as the reference */
+    private static GpsData _legacyFromSmsText(String str)
+    {
+        String[] params = str.split(",", 7);
+        try {
+            return new GpsData(
+                    Double.parseDouble(params[0]),
+                    Double.parseDouble(params[1]),
+                    Integer.parseInt(params[2]),
+                    Long.parseLong(params[3]) * 1000,
+                    Integer.parseInt(params[4]),
+                    Integer.parseInt(params[5]),
+                    Integer.parseInt(params[6]));
+        }
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException e) { return GpsData.invalid(); }
+    }
+
+    /** The formatter before appendSmsText */
+    private static String _legacyToSmsText(GpsData d)
+    {
+        return String.format(SmsLoc_Common.LOCALE, "%.4f,%.4f,%d,%d,%d,%d,%d",
+                d.lat, d.lon, d.alt_m, d.utc / 1000, d.v_kmh, d.acc_m, d.bat_pct);
+    }
+
+    private static void _assertSameData(String msg, GpsData expected, GpsData actual)
+    {
+        assertEquals(msg + " lat", 0, Double.compare(expected.lat, actual.lat));
+        assertEquals(msg + " lon", 0, Double.compare(expected.lon, actual.lon));
+        assertEquals(msg + " alt", expected.alt_m, actual.alt_m);
+        assertEquals(msg + " utc", expected.utc, actual.utc);
+        assertEquals(msg + " v", expected.v_kmh, actual.v_kmh);
+        assertEquals(msg + " acc", expected.acc_m, actual.acc_m);
+        assertEquals(msg + " bat", expected.bat_pct, actual.bat_pct);
+    }
+
+    private static void _assertRoundTrip(GpsData data)
+    {
+        final String text = data.toSmsText();
+        assertEquals(_legacyToSmsText(data), text);
+
+        final GpsData parsed = GpsData.fromSmsText(text);
+        assertTrue(text, parsed.dataValid());
+        assertEquals(text, parsed.toSmsText());
+        _assertSameData(text, _legacyFromSmsText(text), parsed);
+    }
+
+    @Test
+    public void roundTrip_typical()
+    {
+        _assertRoundTrip(new GpsData(46.0569465, 14.5057515, 295, UTC + 999, 4, 12, 87));
+        _assertRoundTrip(new GpsData(89.99999, 179.99999, 8848, UTC, 0, 3, 100));
+    }
+
+    @Test
+    public void roundTrip_negativeCoordinates()
+    {
+        _assertRoundTrip(new GpsData(-33.8688197, 151.2092955, 58, UTC, 3, 5, 100));
+        _assertRoundTrip(new GpsData(-22.9068467, -43.1728965, 11, UTC, 0, 20, 42));
+        _assertRoundTrip(new GpsData(-90.0, -180.0, 0, UTC, 0, 0, 0));
+        // rounds to zero but keeps the sign, like %.4f
+        _assertRoundTrip(new GpsData(-0.00001, -0.0, 0, UTC, 0, 0, 0));
+        assertTrue(new GpsData(-0.00001, -0.0, 0, UTC, 0, 0, 0).toSmsText().startsWith("-0.0000,-0.0000,"));
+    }
+
+    @Test
+    public void roundTrip_nearTies()
+    {
+        final double[] values = {45.12345, 45.12355, 0.00005, 0.00015, 13.00015, 1.00005, 2.67895, 179.99995,
+                0.1, 0.3, 46.0569499999, 46.05695000001};
+        for (double v : values) {
+            for (double x : new double[] {v, Math.nextUp(v), Math.nextDown(v)}) {
+                _assertRoundTrip(new GpsData(Math.min(x, 90), Math.min(x, 180), 1, UTC, 1, 1, 1));
+                _assertRoundTrip(new GpsData(-Math.min(x, 90), -Math.min(x, 180), 1, UTC, 1, 1, 1));
+            }
+        }
+        // every 4th decimal tie in a range, the exact binary value is above or below the tie
+        for (int i = 0; i < 20000; i++) {
+            final double tie = (10 * i + 5) / 1e5;
+            _assertRoundTrip(new GpsData(tie, 180 - tie, 0, UTC, 0, 0, 0));
+        }
+    }
+
+    @Test
+    public void roundTrip_zeroAndMaxFields()
+    {
+        _assertRoundTrip(new GpsData(0, 0, 0, 0, 0, 0, 0));
+        _assertRoundTrip(new GpsData(1, 1, Integer.MAX_VALUE, (Long.MAX_VALUE / 1000) * 1000,
+                Integer.MAX_VALUE, Integer.MAX_VALUE, 100));
+        // fields that are not checked by dataValid
+        _assertRoundTrip(new GpsData(1, 1, 0, UTC, Integer.MIN_VALUE, 0, 0));
+    }
+
+    @Test
+    public void parity_withLegacyParser()
+    {
+        final String[] corpus = {
+                // responses as sent by the app
+                "46.0569,14.5058,295,1729000000,0,12,87",
+                "46.0570,14.5057,301,1729000061,4,9,86",
+                "-33.8688,151.2093,58,1700000000,3,5,100",
+                "-22.9068,-43.1729,11,1700000360,0,20,42",
+                "0.0000,-0.0001,0,0,0,0,0",
+                "64.1466,-21.9426,35,1731234567,87,4,15",
+                // older versions and hand typed
+                "46.05694651,14.50575152,295,1729000000,0,12,87",
+                "46,14,295,1729000000,0,12,87",
+                "46.,.5,295,1729000000,0,12,87",
+                "+46.0569,+14.5058,+295,+1729000000,+0,+12,+87",
+                "-0,-0.0,-5,1729000000,-1,0,0",
+                "0046.0569,014.5058,0295,01729000000,00,012,087",
+                "46.0569,14.5058,-2147483648,1729000000,2147483647,0,0",
+                "46.123456789012345678,14.5,1,2,3,4,5",
+                // not from toSmsText, but parseDouble always took them
+                "4.60569E1,1.45058e+1,295,1729000000,0,12,87",
+                " 46.0569, 14.5058 ,295,1729000000,0,12,87",
+                "46.0569d,14.5058f,295,1729000000,0,12,87",
+                "NaN,Infinity,295,1729000000,0,12,87",
+                "0x1.7p5,-Infinity,295,1729000000,0,12,87",
+                // broken
+                "",
+                SmsLoc_Common.Consts.GPS_DATA_INVALID_ERR_STR,
+                "46.0569,14.5058,295,1729000000,0,12",
+                "46.0569,14.5058,295,1729000000,0,12,87,",
+                "46.0569,14.5058,295,1729000000,0,12,87,5",
+                "46.0569,,295,1729000000,0,12,87",
+                "46.0569,14.5058,295,1729000000,0,12,",
+                "46.0569,14.5058,295.5,1729000000,0,12,87",
+                "46.0569,14.5058,2147483648,1729000000,0,12,87",
+                "46.0569,14.5058, 295,1729000000,0,12,87",
+                "46.0569,14.5058,295,1729000000,0,12,87 ",
+                "46.05.69,14.5058,295,1729000000,0,12,87",
+                "46.0569 14.5058,295,1729000000,0,12,87",
+                "-,14.5058,295,1729000000,0,12,87",
+                ".,14.5058,295,1729000000,0,12,87",
+                "46.0569,14.5058,1e3,1729000000,0,12,87",
+                "46.0569,14.5058,--1,1729000000,0,12,87",
+        };
+        for (String text : corpus) {
+            _assertSameData("'" + text + "'", _legacyFromSmsText(text), GpsData.fromSmsText(text));
+        }
+    }
+
+    @Test
+    public void parse_afterResponseCode()
+    {
+        final String sms = "Loc:46.0569,14.5058,295,1729000000,0,12,87";
+        _assertSameData(sms, _legacyFromSmsText(sms.substring(4)), GpsData.fromSmsText(sms, 4));
+    }
+
+    @Test
+    public void parse_errorCodes()
+    {
+        final GpsData.SmsParser parser = new GpsData.SmsParser();
+        _assertError(parser, "46.0569,14.5058,295,1729000000,0,12,87", GpsData.SmsParser.OK, 6);
+        _assertError(parser, "", GpsData.SmsParser.ERR_NOT_A_NUMBER, 0);
+        _assertError(parser, "GPS Data invalid", GpsData.SmsParser.ERR_NOT_A_NUMBER, 0);
+        _assertError(parser, "46.0569,,295,1729000000,0,12,87", GpsData.SmsParser.ERR_NOT_A_NUMBER, 1);
+        _assertError(parser, "46.0569", GpsData.SmsParser.ERR_NUM_FIELDS, 0);
+        _assertError(parser, "46.0569,14.5058,295,1729000000,0,12", GpsData.SmsParser.ERR_NUM_FIELDS, 5);
+        _assertError(parser, "46.0569,14.5058,295,1729000000,0,12,87,5", GpsData.SmsParser.ERR_NUM_FIELDS, 6);
+        _assertError(parser, "46.0569,14.5058,295.5,1729000000,0,12,87", GpsData.SmsParser.ERR_NUM_FIELDS, 2);
+        _assertError(parser, "46.0569,14.5058,295,1729000000,0,12,87x", GpsData.SmsParser.ERR_NOT_A_NUMBER, 6);
+        _assertError(parser, "46.0569,14.5058,2147483648,1729000000,0,12,87", GpsData.SmsParser.ERR_OUT_OF_RANGE, 2);
+        _assertError(parser, "46.0569,14.5058,-2147483649,1729000000,0,12,87", GpsData.SmsParser.ERR_OUT_OF_RANGE, 2);
+        _assertError(parser, "46.0569,14.5058,-2147483648,1729000000,0,12,87", GpsData.SmsParser.OK, 6);
+
+        // the parser is reusable, values of the last OK parse
+        _assertError(parser, "-1.5,2.25,3,4,5,6,7", GpsData.SmsParser.OK, 6);
+        _assertSameData("reuse", new GpsData(-1.5, 2.25, 3, 4000, 5, 6, 7), parser.toGpsData());
+    }
+
+    /**
+     * The only input the legacy parser took and SmsParser does not: utc seconds that overflow
+     * when converted to ms. Long.parseLong(s) * 1000 silently wrapped around
+     */
+    @Test
+    public void parse_utcOverflowRejected()
+    {
+        final String text = "46.0569,14.5058,295," + (Long.MAX_VALUE / 1000 + 1) + ",0,12,87";
+        _assertError(new GpsData.SmsParser(), text, GpsData.SmsParser.ERR_OUT_OF_RANGE, 3);
+        assertFalse(GpsData.fromSmsText(text).dataValid());
+    }
+
+    @Test
+    public void invalidData_errorText()
+    {
+        final GpsData invalid = GpsData.invalid();
+        assertFalse(invalid.dataValid());
+        assertEquals(SmsLoc_Common.Consts.GPS_DATA_INVALID_ERR_STR, invalid.toSmsText());
+        assertFalse(GpsData.fromSmsText(invalid.toSmsText()).dataValid());
+        // out of range values are sent as the error text too
+        assertEquals(SmsLoc_Common.Consts.GPS_DATA_INVALID_ERR_STR,
+                new GpsData(91, 0, 0, UTC, 0, 0, 0).toSmsText());
+        assertEquals(SmsLoc_Common.Consts.GPS_DATA_INVALID_ERR_STR,
+                new GpsData(0, 0, 0, UTC, 0, 0, 101).toSmsText());
+    }
+
+    private static void _assertError(GpsData.SmsParser parser, String text, int err, int field)
+    {
+        assertEquals("'" + text + "' error", err, parser.parse(text, 0, text.length()));
+        assertEquals("'" + text + "' field", field, parser.errField);
+    }
+}